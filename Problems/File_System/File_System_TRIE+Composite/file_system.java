@@ -1,46 +1,84 @@
 // Base class for File System Node (Composite Pattern)
+// Kept small because trees get big: only directories carry children, timestamps are epoch
+// millis instead of LocalDateTime objects, and names are interned so that the thousands of
+// "README.md" or "src" nodes in a large tree share one String
+// Nodes are shared between threads: readers never lock, and writers synchronize on the node
+// they add to or remove from
 public abstract class FileSystemNode {
-  // Name of the node
-  private String name;
-  // Map of child nodes
-  private Map<String, FileSystemNode> children;
-  // Timestamp for node creation
-  private LocalDateTime createdAt;
-  // Timestamp for the last modification
-  private LocalDateTime modifiedAt;
+  // Name of the node (changes only when movePath renames it)
+  private volatile String name;
+  // Timestamp for node creation (epoch millis); only changed by restoreTimes while loading
+  private long createdAt;
+  // Timestamp for the last modification (epoch millis)
+  private volatile long modifiedAt;
+  // Set (under this node's lock) once the node has been unlinked by deletePath
+  // A writer that locks a removed node must retry its walk from the root
+  private volatile boolean removed;
+  // Set once a directory that shared this node with a copy replaced it by a private copy
+  // (see Directory.unshareChildren); the node may still be live under the other directory
+  private volatile boolean superseded;
+  // Time of the logged change the current thread is replaying (see FileSystemStore.replay),
+  // so replayed nodes get the times they had, not the time of the restart
+  private static final ThreadLocal<long[]> replayTime = new ThreadLocal<>();
+
   // Constructor to initialize the node with a name
   public FileSystemNode(String name) {
-    this.name = name;
-    this.children = new HashMap<>();
-    this.createdAt = LocalDateTime.now();
-    this.modifiedAt = LocalDateTime.now();
+    this.name = name.intern();
+    this.createdAt = now();
+    this.modifiedAt = createdAt;
+  }
+
+  // Constructor for a copy of another node, keeping its timestamps
+  protected FileSystemNode(FileSystemNode original, String name) {
+    this.name = name.intern();
+    this.createdAt = original.createdAt;
+    this.modifiedAt = original.modifiedAt;
   }
 
+  // Copy of this node under another name that shares its contents (file data is immutable,
+  // directory children are shared copy-on-write), so copying is O(1) whatever the subtree size
+  public abstract FileSystemNode copy(String name);
+
+  // Child operations: a file has no children, Directory overrides these
+
   // Add child node
   public void addChild(String name, FileSystemNode child) {
-    this.children.put(name, child);
-    this.modifiedAt = LocalDateTime.now();
+    throw new UnsupportedOperationException(getName() + " is a file");
   }
 
   // Check if child exists
   public boolean hasChild(String name) {
-    return this.children.containsKey(name);
+    return getChild(name) != null;
   }
 
   // Get child node by name
   public FileSystemNode getChild(String name) {
-    return this.children.get(name);
+    return null;
+  }
+
+  // Get child node by the component the cursor is currently on, without a substring
+  public FileSystemNode getChild(PathCursor component) {
+    return null;
   }
 
   // Remove child node
   public boolean removeChild(String name) {
-    if (hasChild(name)) {
-      children.remove(name);
-      return true;
-    }
     return false;
   }
 
+  // Remove child node by the component the cursor is currently on
+  public boolean removeChild(PathCursor component) {
+    return false;
+  }
+
+  public Collection<FileSystemNode> getChildren() {
+    return Collections.emptyList();
+  }
+
+  public int getChildCount() {
+    return 0;
+  }
+
   // Abstract methods for node operations
   public abstract boolean isFile();
   public abstract void display(int depth);
@@ -50,35 +88,99 @@ public abstract class FileSystemNode {
     return name;
   }
 
-  public Collection<FileSystemNode> getChildren() {
-    return children.values();
+  // Rename the node; only while it is unlinked from its parent (its position depends on the name)
+  void rename(String name) {
+    this.name = name.intern();
+    updateModifiedTime();
   }
 
   public LocalDateTime getCreatedAt() {
-    return createdAt;
+    return toDateTime(createdAt);
   }
 
   public LocalDateTime getModifiedAt() {
+    return toDateTime(modifiedAt);
+  }
+
+  public long getCreatedAtMillis() {
+    return createdAt;
+  }
+
+  public long getModifiedAtMillis() {
     return modifiedAt;
   }
 
+  private static LocalDateTime toDateTime(long epochMillis) {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+  }
+
   // Update the modification timestamp
   protected void updateModifiedTime() {
-    this.modifiedAt = LocalDateTime.now();
+    this.modifiedAt = now();
+  }
+
+  // Put back the timestamps a node had when it was checkpointed (before it is linked)
+  void restoreTimes(long createdAt, long modifiedAt) {
+    this.createdAt = createdAt;
+    this.modifiedAt = modifiedAt;
+  }
+
+  // Stamp the nodes the current thread creates or modifies with a logged time (null: the clock)
+  static void replayingAt(long[] time) {
+    if (time == null)
+      replayTime.remove();
+    else
+      replayTime.set(time);
+  }
+
+  static long now() {
+    long[] time = replayTime.get();
+    return time == null ? System.currentTimeMillis() : time[0];
+  }
+
+  // Check if the node has been deleted from the tree
+  public boolean isRemoved() {
+    return removed;
+  }
+
+  // Mark the node as deleted; callers hold this node's lock
+  protected void markRemoved() {
+    this.removed = true;
+  }
+
+  // Check if a directory replaced this shared node by a private copy
+  public boolean isSuperseded() {
+    return superseded;
+  }
+
+  protected void markSuperseded() {
+    this.superseded = true;
   }
 }
 
 // File class representing individual files (Leaf)
 public class File extends FileSystemNode {
-  // Content of the file
-  private String content;
+  // Content of the file (null until something is written)
+  private volatile FileContent data;
   // File extension
   private String extension;
 
   // Constructor for file with name
   public File(String name) {
     super(name);
-    this.extension = extractExtension(name);
+    this.extension = extractExtension(name).intern();
+  }
+
+  // Constructor for a copy sharing the original's content
+  private File(File original, String name) {
+    super(original, name);
+    this.extension = extractExtension(name).intern();
+    this.data = original.data;
+  }
+
+  @Override
+  public File copy(String name) {
+    return new File(this, name);
   }
 
   // Extract file extension from name
@@ -89,13 +191,28 @@ public class File extends FileSystemNode {
 
   // Set content of the file
   public void setContent(String content) {
-    this.content = content;
-    updateModifiedTime();
+    setData(content == null ? null : FileContent.of(content));
+  }
+
+  // File extension ("md" for "notes.md", "" if none)
+  public String getExtension() {
+    return extension;
   }
 
   // Get content of the file
   public String getContent() {
-    return content;
+    FileContent current = data;
+    return current == null ? null : current.asString();
+  }
+
+  // Replace the file's bytes with a new version
+  public void setData(FileContent data) {
+    this.data = data;
+    updateModifiedTime();
+  }
+
+  public FileContent getData() {
+    return data;
   }
 
   @Override
@@ -119,10 +236,241 @@ public class File extends FileSystemNode {
 
 
 // Directory class representing directories (Composite)
+// Children start out as a sorted array searched with binary search (an empty directory shares
+// one empty array) and switch to a ConcurrentHashMap once the directory grows past
+// HASH_THRESHOLD. The array is copy-on-write: writers replace it under the directory's lock and
+// readers just read the volatile field, so lookups never lock either way
+// copy() shares the children container (and so the child nodes) with the copy. Both sides are
+// flagged childrenShared, and the first change to or below either side gives that side private
+// copies of its direct children first (unshareChildren), one level at a time
 public class Directory extends FileSystemNode {
+  // Number of children above which the sorted array is replaced by a hash table
+  static final int HASH_THRESHOLD = 16;
+  private static final FileSystemNode[] NO_CHILDREN = new FileSystemNode[0];
+
+  // Either a FileSystemNode[] sorted by name, or a ConcurrentHashMap<String, FileSystemNode>
+  private volatile Object children;
+  // The children container (and the nodes in it) is shared with a copy of this directory
+  private volatile boolean childrenShared;
+
   // Constructor for directory with name
   public Directory(String name) {
     super(name);
+    this.children = NO_CHILDREN;
+  }
+
+  // Constructor for a copy sharing the original's children
+  private Directory(Directory original, String name) {
+    super(original, name);
+    this.children = original.children;
+    this.childrenShared = true;
+  }
+
+  @Override
+  public synchronized Directory copy(String name) {
+    Directory copy = new Directory(this, name);
+    this.childrenShared = true;
+    return copy;
+  }
+
+  public boolean isChildrenShared() {
+    return childrenShared;
+  }
+
+  // Make sure this directory's children are its own before something at or below it changes
+  // Returns false if the directory was deleted meanwhile, in which case the caller retries
+  public synchronized boolean unshareChildren() {
+    if (isRemoved())
+      return false;
+    copyChildrenIfShared();
+    return true;
+  }
+
+  // Replace shared children by private copies; callers hold this directory's lock
+  // The replaced nodes stay valid for the other side, which makes its own copies when it changes
+  private void copyChildrenIfShared() {
+    if (!childrenShared)
+      return;
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      FileSystemNode[] copies = new FileSystemNode[sorted.length];
+      for (int i = 0; i < sorted.length; i++) {
+        copies[i] = sorted[i].copy(sorted[i].getName());
+        sorted[i].markSuperseded();
+      }
+      children = copies.length == 0 ? NO_CHILDREN : copies;
+    } else {
+      ConcurrentHashMap<String, FileSystemNode> copies =
+          new ConcurrentHashMap<>(asTable(current).size() * 2);
+      for (FileSystemNode child : asTable(current).values()) {
+        copies.put(child.getName(), child.copy(child.getName()));
+        child.markSuperseded();
+      }
+      children = copies;
+    }
+    childrenShared = false;
+  }
+
+  // Add child node (replaces an existing child with the same name)
+  @Override
+  public synchronized void addChild(String name, FileSystemNode child) {
+    copyChildrenIfShared();
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      int index = indexOf(sorted, name);
+      if (index >= 0) {
+        FileSystemNode[] copy = sorted.clone();
+        copy[index] = child;
+        children = copy;
+      } else if (sorted.length < HASH_THRESHOLD) {
+        int insertAt = -index - 1;
+        FileSystemNode[] copy = new FileSystemNode[sorted.length + 1];
+        System.arraycopy(sorted, 0, copy, 0, insertAt);
+        copy[insertAt] = child;
+        System.arraycopy(sorted, insertAt, copy, insertAt + 1, sorted.length - insertAt);
+        children = copy;
+      } else {
+        // Past the threshold: move everything into a hash table
+        ConcurrentHashMap<String, FileSystemNode> table =
+            new ConcurrentHashMap<>(HASH_THRESHOLD * 4);
+        for (FileSystemNode node : sorted)
+          table.put(node.getName(), node);
+        table.put(name, child);
+        children = table;
+      }
+    } else {
+      table().put(name, child);
+    }
+    updateModifiedTime();
+  }
+
+  // Get child node by name
+  @Override
+  public FileSystemNode getChild(String name) {
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      int index = indexOf(sorted, name);
+      return index >= 0 ? sorted[index] : null;
+    }
+    return asTable(current).get(name);
+  }
+
+  // Get child node by the component the cursor is currently on
+  // The array is searched by comparing the cursor's range against child names; the hash
+  // table is probed with the cursor itself, which hashes and compares like the component
+  @Override
+  public FileSystemNode getChild(PathCursor component) {
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      int low = 0;
+      int high = sorted.length - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int comparison = component.compareTo(sorted[middle].getName());
+        if (comparison > 0)
+          low = middle + 1;
+        else if (comparison < 0)
+          high = middle - 1;
+        else
+          return sorted[middle];
+      }
+      return null;
+    }
+    return asTable(current).get(component);
+  }
+
+  // Remove child node
+  @Override
+  public synchronized boolean removeChild(String name) {
+    copyChildrenIfShared();
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      int index = indexOf(sorted, name);
+      if (index < 0)
+        return false;
+      removeAt(sorted, index);
+    } else if (table().remove(name) == null) {
+      return false;
+    }
+    updateModifiedTime();
+    return true;
+  }
+
+  // Remove child node by the component the cursor is currently on
+  @Override
+  public synchronized boolean removeChild(PathCursor component) {
+    copyChildrenIfShared();
+    Object current = children;
+    if (current instanceof FileSystemNode[]) {
+      FileSystemNode child = getChild(component);
+      if (child == null)
+        return false;
+      FileSystemNode[] sorted = (FileSystemNode[]) current;
+      removeAt(sorted, indexOf(sorted, child.getName()));
+    } else if (table().remove(component) == null) {
+      return false;
+    }
+    updateModifiedTime();
+    return true;
+  }
+
+  // Children in name order for small directories, in hash order for large ones
+  @Override
+  public Collection<FileSystemNode> getChildren() {
+    Object current = children;
+    if (current instanceof FileSystemNode[])
+      return Collections.unmodifiableList(Arrays.asList((FileSystemNode[]) current));
+    return Collections.unmodifiableCollection(asTable(current).values());
+  }
+
+  @Override
+  public int getChildCount() {
+    Object current = children;
+    if (current instanceof FileSystemNode[])
+      return ((FileSystemNode[]) current).length;
+    return asTable(current).size();
+  }
+
+  private void removeAt(FileSystemNode[] sorted, int index) {
+    if (sorted.length == 1) {
+      children = NO_CHILDREN;
+      return;
+    }
+    FileSystemNode[] copy = new FileSystemNode[sorted.length - 1];
+    System.arraycopy(sorted, 0, copy, 0, index);
+    System.arraycopy(sorted, index + 1, copy, index, sorted.length - index - 1);
+    children = copy;
+  }
+
+  // Binary search by name; returns -(insertion point) - 1 when absent
+  private static int indexOf(FileSystemNode[] sorted, String name) {
+    int low = 0;
+    int high = sorted.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = sorted[middle].getName().compareTo(name);
+      if (comparison < 0)
+        low = middle + 1;
+      else if (comparison > 0)
+        high = middle - 1;
+      else
+        return middle;
+    }
+    return -(low + 1);
+  }
+
+  private ConcurrentHashMap<String, FileSystemNode> table() {
+    return asTable(children);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ConcurrentHashMap<String, FileSystemNode> asTable(Object children) {
+    return (ConcurrentHashMap<String, FileSystemNode>) children;
   }
 
   @Override
@@ -145,7 +493,7 @@ public class Directory extends FileSystemNode {
 
     // Print the directory name with appropriate indentation, emoji and number of children
     // e.g., "    📁 cwa_lld (3 items)"
-    System.out.println(indent + "📁 " + getName() + " (" + getChildren().size() + " items)");
+    System.out.println(indent + "📁 " + getName() + " (" + getChildCount() + " items)");
     // Then for each child (let's say we have "design_file_system" directory,
     // "requirements.txt" file, and "notes.md" file)
     // We recursively call display with depth+1 (3 in this case)
@@ -160,207 +508,4830 @@ public class Directory extends FileSystemNode {
 }
 
 
-// Main File System class implementing the trie structure
-public class FileSystem {
-  // Root directory
-  private FileSystemNode root;
+// Cursor that walks the components of a path in place (no split, no substrings)
+// path = "/document/cwa_lld/design_file_system"
+// next() -> "document", next() -> "cwa_lld", next() -> "design_file_system", next() -> false
+// Directories compare the current component against child names with compareTo, and the
+// cursor doubles as a hash lookup key: it hashes and compares like the String of the
+// current component, so a Map<String, ...> can be probed without creating that String
+public final class PathCursor {
+  // Path being scanned
+  private final String path;
+  // Current component is path[start, end)
+  private int start;
+  private int end;
+  // Hash of the current component, same value as String.hashCode() would give
+  private int hash;
 
-  // Constructor to initialize the file system with a root directory
-  public FileSystem() {
-    this.root = new Directory("/");
-  }
-  // path = "/document/cwa_lld/design_file_system"
-  // Checking if path is not null, not empty, and starts with
-  // Validate file path to be non-empty and properly formatted
-  public boolean isValidFilePath(String path) {
-    // Returns true because path meets all criteria
-    return path != null && !path.isEmpty() && path.startsWith("/");
+  public PathCursor(String path) {
+    this.path = path;
+    this.start = 0;
+    this.end = 0;
   }
 
-  // Create a new path
-  // path = "/document/cwa_lld/design_file_system"
-  public boolean createPath(String path) {
-    // Validate path
-    // path is valid, so continue
-    if (!isValidFilePath(path))
-      return false;
-    // Split path into components
-    // pathComponents = ["", "document", "cwa_lld", "design_file_system"]
-    String[] pathComponents = path.split("/");
-    // Start from root
-    // current = root directory "/"
-    FileSystemNode current = root;
-    // Traverse to the parent directory
-    // We need to process: "document" and "cwa_lld" (stopping before the last component)
-    for (int i = 1; i < pathComponents.length - 1; i++) {
-      String component = pathComponents[i];
-      if (component.isEmpty())
-        continue; // Skip empty components
-      // First iteration: component = "document"
-      // Second iteration: component = "cwa_lld"
-      if (!current.hasChild(component)) {
-        // If "document" doesn't exist, create it
-        // If "cwa_lld" doesn't exist, create it
-        FileSystemNode newDir = new Directory(component);
-        current.addChild(component, newDir);
-      }
-      FileSystemNode child = current.getChild(component);
-      if (child.isFile()) {
-        // If "document" or "cwa_lld" is a file, we cannot navigate through it
-        // Return false in that case
-        return false;
-      }
-      // Move to the next level
-      // First iteration: current = "document" directory
-      // Second iteration: current = "cwa_lld" directory
-      current = child;
-    }
-    // Get the last component (file or directory name)
-    // lastComponent = "design_file_system"
-    String lastComponent = pathComponents[pathComponents.length - 1];
-    if (lastComponent.isEmpty())
-      return false;
-    // Check if the component already exists
-    // If "design_file_system" already exists under "cwa_lld", return false
-    if (current.hasChild(lastComponent)) {
+  // Move to the next non-empty component, skipping repeated slashes
+  // Returns false when there are no components left
+  public boolean next() {
+    int length = path.length();
+    int i = end;
+    while (i < length && path.charAt(i) == '/')
+      i++;
+    if (i >= length)
       return false;
+    int h = 0;
+    int j = i;
+    while (j < length) {
+      char c = path.charAt(j);
+      if (c == '/')
+        break;
+      h = 31 * h + c;
+      j++;
     }
-    // Create new node based on whether it's a file (has extension) or directory
-    // "design_file_system" has no dot, so create as directory
-    FileSystemNode newNode;
-    if (lastComponent.contains(".")) {
-      newNode = new File(lastComponent);
-    } else {
-      newNode = new Directory(lastComponent);
-    }
-    // Add the new node to the parent
-    // Add "design_file_system" directory to "cwa_lld"
-    current.addChild(lastComponent, newNode);
+    start = i;
+    end = j;
+    hash = h;
     return true;
   }
 
-  // Helper method to get node at path
-  // path = "/document/cwa_lld/design_file_system"
-  private FileSystemNode getNode(String path) {
-    // Check if path is valid
-    // Path is valid, so continue
-    if (!isValidFilePath(path))
-      return null;
-    // For root path
-    // Path is not "/", so skip this
-    if (path.equals("/"))
-      return root;
-    // Split path into components
-    // pathComponents = ["", "document", "cwa_lld", "design_file_system"]
-    String[] pathComponents = path.split("/");
-    // Start from root
-    // current = root directory "/"
-    FileSystemNode current = root;
-    // Traverse through the path
-    // We need to process: "document", "cwa_lld", and "design_file_system"
-    for (int i = 1; i < pathComponents.length; i++) {
-      String component = pathComponents[i];
-      if (component.isEmpty())
-        continue; // Skip empty components
-      // First iteration: component = "document"
-      // Second iteration: component = "cwa_lld"
-      // Third iteration: component = "design_file_system
-      if (!current.hasChild(component)) {
-        // If any component doesn't exist at its level, return null
-        return null;
-      }
-      // Move to the next level
-      // First iteration: current = "document" directory
-      // Second iteration: current = "cwa_lld" directory
-      // Third iteration: current = "design_file_system" directory
-      current = current.getChild(component);
+  // True if the current component is the last one (only slashes may follow)
+  // "/document/cwa_lld/" -> true while on "cwa_lld"
+  public boolean isLast() {
+    for (int i = end; i < path.length(); i++) {
+      if (path.charAt(i) != '/')
+        return false;
     }
-    // Return the node found at the path
-    // Returns the "design_file_system" directory node
-    return current;
+    return true;
   }
 
-  // Delete path
-  public boolean deletePath(String path) {
-    // path = "/document/cwa_lld/design_file_system"
-    // Check if path is valid
-    // Path is valid, so continue
-    if (!isValidFilePath(path))
-      return false;
-    // Can't delete root
-    // Path is not "/", so continue
-    if (path.equals("/"))
-      return false;
-    // Get parent path
-    // parentPath = "/document/cwa_lld"
-    String parentPath = getParentPath(path);
-    // Get the parent node
-    // parent = "cwa_lld" directory node
-    FileSystemNode parent = getNode(parentPath);
-    // If parent doesn't exist or is a file, can't delete
-    // Assuming parent exists and is a directory, continue
-    if (parent == null || parent.isFile())
-      return false;
-    // Get the last component of the path
-    // lastComponent = "design_file_system"
-    String lastComponent = path.substring(path.lastIndexOf('/') + 1);
-    // Check if the component exists
-    // If "design_file_system" doesn't exist under "cwa_lld", return false
-    if (!parent.hasChild(lastComponent)) {
-      return false;
+  // Check if the current component contains a character (e.g. '.' for files)
+  public boolean contains(char c) {
+    for (int i = start; i < end; i++) {
+      if (path.charAt(i) == c)
+        return true;
     }
-    // Remove the child from the parent
-    // Remove "design_file_system" from "cwa_lld"
-    return parent.removeChild(lastComponent);
+    return false;
   }
 
-  // Helper method to get parent path
-  private String getParentPath(String path) {
-    // path = "/document/cwa_lld/design_file_system"
-    // Find the last slash
-    // lastSlash = 19 (position of last slash before "design_file_system")
-    int lastSlash = path.lastIndexOf('/');
-    // If there's no slash or only the root slash, return root
-    // lastSlash is 19, which is > 0, so continue
-    if (lastSlash <= 0) {
-      return "/";
+  // Materialize the current component; only needed when a new node gets created
+  public String component() {
+    return path.substring(start, end);
+  }
+
+  // Path up to and including the current component
+  // "/document/cwa_lld/design_file_system" while on "cwa_lld" -> "/document/cwa_lld"
+  public String prefix() {
+    return path.substring(0, end);
+  }
+
+  // Compare the current component with a name, with the same ordering as String.compareTo
+  public int compareTo(String name) {
+    int length = end - start;
+    int limit = Math.min(length, name.length());
+    for (int i = 0; i < limit; i++) {
+      char c = path.charAt(start + i);
+      char other = name.charAt(i);
+      if (c != other)
+        return c - other;
     }
-    // Return the substring up to the last slash
-    // Returns "/document/cwa_lld"
-    return path.substring(0, lastSlash);
+    return length - name.length();
   }
 
-  // Display the entire file system structure
-  public void display() {
-    root.display(0);
+  @Override
+  public int hashCode() {
+    return hash;
   }
 
-  // Set content for file
-  public boolean setFileContent(String path, String content) {
-    FileSystemNode node = getNode(path);
-    if (node == null || !node.isFile())
+  // Only ever called by the children map with one of its String keys
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof String))
       return false;
-    File file = (File) node;
-    file.setContent(content);
-    return true;
+    String name = (String) other;
+    return name.length() == end - start && path.regionMatches(start, name, 0, end - start);
   }
 
-  // Get content from file
-  public String getFileContent(String path) {
-    FileSystemNode node = getNode(path);
-    if (node == null || !node.isFile())
-      return null;
-    File file = (File) node;
-    return file.getContent();
+  @Override
+  public String toString() {
+    return component();
   }
 }
 
 
-// Client code to test the file system
-public class FileSystemClient {
-  public static void main(String[] args) {
-    // Create a new file system instance
-    FileSystem fs = new FileSystem();
+// Bounded cache of resolved paths (like a dentry cache) with CLOCK eviction
+// "/document/cwa_lld/design_file_system" -> design_file_system node
+// "/document/missing" -> negative entry (path doesn't exist)
+// Entries are never updated in place, they are checked when read:
+//  - a positive entry is stale once its node was marked removed by deletePath, which
+//    covers every path inside a deleted subtree without scanning the cache (or superseded
+//    by a private copy after copyPath; movePath clears the cache)
+//  - a negative entry is stale once any node was created after it was resolved
+public class PathLookupCache {
+  // One cached lookup result
+  public static final class Entry {
+    private final String path;
+    // Resolved node, null for a negative entry
+    private final FileSystemNode node;
+    // Generation the lookup started at: the creation generation for a negative entry,
+    // the shared-delete generation for a positive one
+    private final long generation;
+    // CLOCK reference bit, set on every hit
+    private volatile boolean referenced;
+
+    Entry(String path, FileSystemNode node, long generation) {
+      this.path = path;
+      this.node = node;
+      this.generation = generation;
+    }
+
+    public FileSystemNode getNode() {
+      return node;
+    }
+  }
+
+  // Cached entries by path
+  private final ConcurrentHashMap<String, Entry> entries;
+  // CLOCK ring: every entry in the map owns one slot
+  private final Entry[] ring;
+  // Position of the CLOCK hand
+  private int hand;
+  // Bumped whenever a node is created; older negative entries become stale
+  private final AtomicLong missingGeneration;
+  // Bumped whenever a delete leaves nodes unmarked because a copy still shares them;
+  // older positive entries become stale (their node may be one of those)
+  private final AtomicLong removedGeneration;
+  // Counters for sizing the cache
+  private final LongAdder hits;
+  private final LongAdder negativeHits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+
+  public PathLookupCache(int capacity) {
+    this.entries = new ConcurrentHashMap<>(capacity * 2);
+    this.ring = new Entry[capacity];
+    this.hand = 0;
+    this.missingGeneration = new AtomicLong();
+    this.removedGeneration = new AtomicLong();
+    this.hits = new LongAdder();
+    this.negativeHits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+  }
+
+  // Look up a path; returns null on a miss (including stale entries)
+  public Entry get(String path) {
+    Entry entry = entries.get(path);
+    if (entry == null || isStale(entry)) {
+      misses.increment();
+      return null;
+    }
+    entry.referenced = true;
+    hits.increment();
+    if (entry.node == null)
+      negativeHits.increment();
+    return entry;
+  }
+
+  // Current creation generation, read before resolving a path that may be cached as missing
+  public long missingGeneration() {
+    return missingGeneration.get();
+  }
+
+  // Current shared-delete generation, read before resolving a path that may be cached as found
+  public long removedGeneration() {
+    return removedGeneration.get();
+  }
+
+  // Remember the result of resolving a path (node == null for a missing path), with the
+  // generations read before resolving it
+  public void put(String path, FileSystemNode node, long missingGeneration, long removedGeneration) {
+    Entry entry = new Entry(path, node, node == null ? missingGeneration : removedGeneration);
+    synchronized (ring) {
+      // Advance the hand past recently used entries, clearing their bit, and take the first
+      // slot that is empty or holds an entry that was not used since the last sweep
+      while (ring[hand] != null && ring[hand].referenced && !isStale(ring[hand])) {
+        ring[hand].referenced = false;
+        hand = (hand + 1) % ring.length;
+      }
+      Entry victim = ring[hand];
+      if (victim != null) {
+        // Only drop the mapping if it still points at the victim (it may have been replaced)
+        if (entries.remove(victim.path, victim))
+          evictions.increment();
+      }
+      ring[hand] = entry;
+      hand = (hand + 1) % ring.length;
+      entries.put(path, entry);
+    }
+  }
+
+  // A node was created: every negative entry may now be wrong
+  public void invalidateMissing() {
+    missingGeneration.incrementAndGet();
+  }
+
+  // A deleted subtree still shares nodes with a copy, so they were not marked removed:
+  // every positive entry may point at one of them
+  public void invalidateRemoved() {
+    removedGeneration.incrementAndGet();
+  }
+
+  // Drop every entry (e.g. after the tree was restructured wholesale)
+  public void clear() {
+    synchronized (ring) {
+      Arrays.fill(ring, null);
+      entries.clear();
+    }
+  }
+
+  private boolean isStale(Entry entry) {
+    if (entry.node != null)
+      return entry.node.isRemoved() || entry.node.isSuperseded()
+          || entry.generation != removedGeneration.get();
+    return entry.generation != missingGeneration.get();
+  }
+
+  // Counters
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getNegativeHits() {
+    return negativeHits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public int capacity() {
+    return ring.length;
+  }
+}
+
+
+// Immutable bytes of one version of a file, kept as a list of blocks instead of one String
+// A write builds a new FileContent and swaps it in, so readers keep a consistent version
+// Appending shares every block of the old version and only adds (or re-packs a small tail) blocks
+// Blocks are heap or direct ByteBuffers, or read-only views of a durable store's mapped data file
+// Blocks are ContentBlocks, so versions and files can share them: deduplicate() swaps in the
+// identical blocks a ContentStore already has, and compress() deflates them in place
+public final class FileContent {
+  // Size of the blocks built by Writer
+  public static final int BLOCK_SIZE = 64 * 1024;
+
+  public static final FileContent EMPTY = new FileContent(new ContentBlock[0], new long[0], null);
+
+  private final ContentBlock[] blocks;
+  // ends[i] = offset just past block i, so ends[last] is the size
+  private final long[] ends;
+  // Where each block lives in the store's data file (null for in-memory content)
+  private final FileSystemStore.Extent[] extents;
+
+  private FileContent(ContentBlock[] blocks, long[] ends, FileSystemStore.Extent[] extents) {
+    this.blocks = blocks;
+    this.ends = ends;
+    this.extents = extents;
+  }
+
+  // Content made of heap blocks holding a copy of the bytes
+  public static FileContent of(byte[] bytes) {
+    if (bytes.length == 0)
+      return EMPTY;
+    // Up to one block: a copy of exactly the bytes, rather than a block buffer trimmed after
+    if (bytes.length <= BLOCK_SIZE) {
+      ByteBuffer block = ByteBuffer.wrap(bytes.clone()).asReadOnlyBuffer();
+      return new FileContent(new ContentBlock[] {new ContentBlock(block, true)},
+          new long[] {bytes.length}, null);
+    }
+    Writer writer = new Writer(false);
+    writer.write(bytes, 0, bytes.length);
+    return writer.toContent();
+  }
+
+  // Content of a String, UTF-8 encoded
+  public static FileContent of(String text) {
+    return of(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Content that lives in a durable store's data file
+  public static FileContent stored(FileSystemStore.Extent extent) {
+    return new FileContent(
+        new ContentBlock[] {new ContentBlock(extent.getBytes().asReadOnlyBuffer(), false)},
+        new long[] {extent.getLength()}, new FileSystemStore.Extent[] {extent});
+  }
+
+  public long size() {
+    return ends.length == 0 ? 0 : ends[ends.length - 1];
+  }
+
+  // Store extents backing this content (null for in-memory content)
+  public FileSystemStore.Extent[] getExtents() {
+    return extents;
+  }
+
+  public int getBlockCount() {
+    return blocks.length;
+  }
+
+  public ContentBlock getBlock(int index) {
+    return blocks[index];
+  }
+
+  // Same bytes, with every block that the store already holds replaced by the stored one
+  // Stored (durable) content is left alone: its bytes live in the store's data file
+  public FileContent deduplicate(ContentStore store) {
+    if (extents != null)
+      return this;
+    ContentBlock[] shared = null;
+    for (int i = 0; i < blocks.length; i++) {
+      ContentBlock canonical = store.intern(blocks[i]);
+      if (canonical != blocks[i]) {
+        if (shared == null)
+          shared = blocks.clone();
+        shared[i] = canonical;
+      }
+    }
+    return shared == null ? this : new FileContent(shared, ends, extents);
+  }
+
+  // Deflate the blocks in place (see ContentBlock.compress); returns the bytes saved
+  public long compress() {
+    long saved = 0;
+    for (ContentBlock block : blocks)
+      saved += block.compress();
+    return saved;
+  }
+
+  // This content followed by more bytes
+  // In-memory content re-packs a partly filled last block together with the new bytes, so
+  // many small appends don't end up as many tiny blocks
+  public FileContent append(FileContent more) {
+    if (more.blocks.length == 0)
+      return this;
+    if (blocks.length == 0)
+      return more;
+    if (extents != null && more.extents != null)
+      return concat(this, more, 0);
+    ContentBlock tail = blocks[blocks.length - 1];
+    if (extents == null && more.extents == null && tail.length() < BLOCK_SIZE) {
+      boolean direct = tail.bytes().isDirect();
+      Writer writer = new Writer(direct);
+      writer.write(tail.bytes().duplicate());
+      for (ContentBlock block : more.blocks)
+        writer.write(block.bytes().duplicate());
+      return concat(this, writer.toContent(), 1);
+    }
+    if ((extents == null) != (more.extents == null))
+      throw new IllegalArgumentException("Cannot mix stored and in-memory content");
+    return concat(this, more, 0);
+  }
+
+  // first's blocks (minus the last dropFromFirst) followed by second's blocks
+  private static FileContent concat(FileContent first, FileContent second, int dropFromFirst) {
+    int keep = first.blocks.length - dropFromFirst;
+    int count = keep + second.blocks.length;
+    ContentBlock[] blocks = Arrays.copyOf(first.blocks, count);
+    long[] ends = Arrays.copyOf(first.ends, count);
+    FileSystemStore.Extent[] extents =
+        first.extents == null ? null : Arrays.copyOf(first.extents, count);
+    long base = keep == 0 ? 0 : first.ends[keep - 1];
+    for (int i = 0; i < second.blocks.length; i++) {
+      blocks[keep + i] = second.blocks[i];
+      ends[keep + i] = base + second.ends[i];
+      if (extents != null)
+        extents[keep + i] = second.extents[i];
+    }
+    return new FileContent(blocks, ends, extents);
+  }
+
+  // Index of the block holding a byte offset (offset < size)
+  private int blockAt(long offset) {
+    int index = Arrays.binarySearch(ends, offset);
+    // An exact hit means offset is the first byte of the next block
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  private long blockStart(int index) {
+    return index == 0 ? 0 : ends[index - 1];
+  }
+
+  // Random-access read into dst starting at position; returns bytes read or -1 at end of content
+  public int read(long position, ByteBuffer dst) {
+    if (position >= size())
+      return -1;
+    int total = 0;
+    int index = blockAt(position);
+    int within = (int) (position - blockStart(index));
+    while (dst.hasRemaining() && index < blocks.length) {
+      ByteBuffer view = blocks[index].bytes().duplicate();
+      view.position(within);
+      if (view.remaining() > dst.remaining())
+        view.limit(within + dst.remaining());
+      total += view.remaining();
+      dst.put(view);
+      index++;
+      within = 0;
+    }
+    return total;
+  }
+
+  // Write count bytes starting at position straight from the blocks to a channel, without
+  // copying them into an intermediate array (mapped blocks go from the page cache)
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    long end = Math.min(size(), position + count);
+    if (position >= end)
+      return 0;
+    long written = 0;
+    int index = blockAt(position);
+    int within = (int) (position - blockStart(index));
+    while (position + written < end) {
+      ByteBuffer view = blocks[index].bytes().duplicate();
+      view.position(within);
+      long blockEnd = Math.min(ends[index], end);
+      view.limit((int) (blockEnd - blockStart(index)));
+      while (view.hasRemaining())
+        written += target.write(view);
+      index++;
+      within = 0;
+    }
+    return written;
+  }
+
+  // Decode the whole content as UTF-8
+  public String asString() {
+    if (blocks.length == 1)
+      return StandardCharsets.UTF_8.decode(blocks[0].bytes().duplicate()).toString();
+    byte[] bytes = new byte[Math.toIntExact(size())];
+    read(0, ByteBuffer.wrap(bytes));
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Sequential reader over this version
+  public InputStream newInputStream() {
+    return Channels.newInputStream(newChannel());
+  }
+
+  // Read-only seekable channel over this version
+  public SeekableByteChannel newChannel() {
+    return new SeekableByteChannel() {
+      private long position = 0;
+      private boolean open = true;
+
+      @Override
+      public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        int read = FileContent.this.read(position, dst);
+        if (read > 0)
+          position += read;
+        return read;
+      }
+
+      @Override
+      public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+      }
+
+      @Override
+      public long position() throws IOException {
+        ensureOpen();
+        return position;
+      }
+
+      @Override
+      public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0)
+          throw new IllegalArgumentException("Negative position " + newPosition);
+        position = newPosition;
+        return this;
+      }
+
+      @Override
+      public long size() throws IOException {
+        ensureOpen();
+        return FileContent.this.size();
+      }
+
+      @Override
+      public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+      }
+
+      @Override
+      public boolean isOpen() {
+        return open;
+      }
+
+      @Override
+      public void close() {
+        open = false;
+      }
+
+      private void ensureOpen() throws IOException {
+        if (!open)
+          throw new ClosedChannelException();
+      }
+    };
+  }
+
+  // Collects written bytes into fixed-size blocks, on or off heap
+  public static class Writer extends OutputStream {
+    private final boolean direct;
+    private final List<ByteBuffer> blocks;
+    private ByteBuffer current;
+    private long size;
+
+    public Writer(boolean direct) {
+      this.direct = direct;
+      this.blocks = new ArrayList<>();
+      this.size = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      if (current == null || !current.hasRemaining())
+        nextBlock();
+      current.put((byte) b);
+      size++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    public void write(ByteBuffer src) {
+      while (src.hasRemaining()) {
+        if (current == null || !current.hasRemaining())
+          nextBlock();
+        int n = Math.min(current.remaining(), src.remaining());
+        ByteBuffer chunk = src.duplicate();
+        chunk.limit(chunk.position() + n);
+        current.put(chunk);
+        src.position(src.position() + n);
+        size += n;
+      }
+    }
+
+    private void nextBlock() {
+      current = direct ? ByteBuffer.allocateDirect(BLOCK_SIZE) : ByteBuffer.allocate(BLOCK_SIZE);
+      blocks.add(current);
+    }
+
+    // Freeze what was written so far; the last block is trimmed to its used length
+    public FileContent toContent() {
+      int count = blocks.size();
+      ContentBlock[] frozen = new ContentBlock[count];
+      long[] ends = new long[count];
+      long end = 0;
+      for (int i = 0; i < count; i++) {
+        ByteBuffer block = blocks.get(i).duplicate();
+        block.flip();
+        if (i == count - 1 && block.limit() < BLOCK_SIZE / 2 && !direct) {
+          // Don't keep a mostly empty 64 KB array around for a short tail
+          block = ByteBuffer.wrap(Arrays.copyOf(block.array(), block.limit()));
+        }
+        frozen[i] = new ContentBlock(block.slice().asReadOnlyBuffer(), true);
+        end += frozen[i].length();
+        ends[i] = end;
+      }
+      blocks.clear();
+      current = null;
+      return new FileContent(frozen, ends, null);
+    }
+
+    public long size() {
+      return size;
+    }
+  }
+}
+
+
+// One immutable block of file content, shared by every version and file that has these bytes
+// Kept as plain bytes until compress() deflates it; after that, reads inflate it again and keep
+// the inflated bytes behind a SoftReference, so a compressed block that is still read often
+// stays fast until memory runs short
+// Only in-memory blocks compress; blocks mapped from a durable store stay as they are
+public final class ContentBlock {
+  // Deflate must save at least 1/8 of a block to be worth inflating on every cold read
+  private static final int MIN_SAVING_SHIFT = 3;
+
+  private final int length;
+  private final boolean inMemory;
+  // Read-only view with position 0 and limit = length; null once compressed
+  private volatile ByteBuffer plain;
+  // Deflate output, set before plain is cleared
+  private volatile byte[] deflated;
+  private volatile SoftReference<ByteBuffer> inflated;
+  // Set by ContentStore once this block is the stored copy of its bytes
+  private volatile boolean interned;
+  // compress() found the bytes don't shrink enough; don't try again
+  private volatile boolean incompressible;
+
+  ContentBlock(ByteBuffer plain, boolean inMemory) {
+    this.plain = plain;
+    this.length = plain.limit();
+    this.inMemory = inMemory;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public boolean isInMemory() {
+    return inMemory;
+  }
+
+  public boolean isCompressed() {
+    return plain == null;
+  }
+
+  // Bytes this block occupies: its length, or the size of its deflated form
+  public int storedLength() {
+    return plain != null ? length : deflated.length;
+  }
+
+  boolean isInterned() {
+    return interned;
+  }
+
+  void markInterned() {
+    interned = true;
+  }
+
+  // Read-only view of the bytes (position 0, limit = length); callers duplicate() it to read
+  public ByteBuffer bytes() {
+    ByteBuffer current = plain;
+    if (current != null)
+      return current;
+    SoftReference<ByteBuffer> cached = inflated;
+    ByteBuffer bytes = cached == null ? null : cached.get();
+    if (bytes == null) {
+      bytes = inflate();
+      inflated = new SoftReference<>(bytes);
+    }
+    return bytes;
+  }
+
+  // Deflate the bytes if that saves enough; returns the bytes saved (0 if nothing changed)
+  // Readers that already hold the plain view keep using it; new readers inflate
+  public synchronized long compress() {
+    if (plain == null || !inMemory || incompressible || length == 0)
+      return 0;
+    ByteBuffer input = plain.duplicate();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    byte[] output;
+    try {
+      deflater.setInput(input);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2);
+      byte[] chunk = new byte[Math.min(length, 16 * 1024)];
+      while (!deflater.finished())
+        out.write(chunk, 0, deflater.deflate(chunk));
+      output = out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+    if (output.length > length - (length >> MIN_SAVING_SHIFT)) {
+      incompressible = true;
+      return 0;
+    }
+    deflated = output;
+    inflated = new SoftReference<>(plain);
+    plain = null;
+    return length - output.length;
+  }
+
+  private ByteBuffer inflate() {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(deflated);
+      byte[] bytes = new byte[length];
+      int done = 0;
+      while (done < length) {
+        int produced = inflater.inflate(bytes, done, length - done);
+        // All input is there, so making no progress means the data ended early (finished or
+        // needs more input) or needs a dictionary: the block is corrupt, not slow
+        if (produced == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+          throw new IllegalStateException("Corrupt compressed block: " + done + " of " + length + " bytes");
+        done += produced;
+      }
+      return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupt compressed block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
+
+
+// Content-addressed block store: in-memory blocks with the same bytes (by SHA-256) are kept once
+// Entries hold their blocks weakly. A block stays stored exactly as long as some version of
+// some file uses it, counting every reference the JVM already tracks (files, copyPath copies,
+// snapshots, open streams), and entries of collected blocks are purged as writes come in
+//   fs.setFileContent("/a.txt", x); fs.setFileContent("/b.txt", x)   -> one stored block
+public final class ContentStore {
+  // Smaller blocks aren't worth an entry: the entry costs more than the bytes
+  static final int MIN_BLOCK_LENGTH = 64;
+  private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  // A weak entry that remembers its key, so it can be removed once its block is collected
+  private static final class Entry extends WeakReference<ContentBlock> {
+    private final ByteBuffer digest;
+
+    Entry(ContentBlock block, ByteBuffer digest, ReferenceQueue<ContentBlock> queue) {
+      super(block, queue);
+      this.digest = digest;
+    }
+  }
+
+  // SHA-256 (a ByteBuffer compares and hashes by content) -> stored block
+  private final ConcurrentHashMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+  private final ReferenceQueue<ContentBlock> collected = new ReferenceQueue<>();
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder savedBytes = new LongAdder();
+
+  // The stored block with the same bytes, storing this one if there is none
+  public ContentBlock intern(ContentBlock block) {
+    purge();
+    if (block.isInterned() || !block.isInMemory() || block.length() < MIN_BLOCK_LENGTH)
+      return block;
+    MessageDigest sha = SHA_256.get();
+    sha.update(block.bytes().duplicate());
+    ByteBuffer digest = ByteBuffer.wrap(sha.digest());
+    lookups.increment();
+    while (true) {
+      Entry existing = entries.get(digest);
+      ContentBlock stored = existing == null ? null : existing.get();
+      if (stored != null) {
+        hits.increment();
+        savedBytes.add(block.length());
+        return stored;
+      }
+      Entry entry = new Entry(block, digest, collected);
+      boolean added = existing == null
+          ? entries.putIfAbsent(digest, entry) == null
+          : entries.replace(digest, existing, entry);
+      if (added) {
+        block.markInterned();
+        return block;
+      }
+    }
+  }
+
+  private void purge() {
+    Reference<? extends ContentBlock> reference;
+    while ((reference = collected.poll()) != null) {
+      Entry entry = (Entry) reference;
+      entries.remove(entry.digest, entry);
+    }
+  }
+
+  // Blocks looked up (not counting ones already stored or too small)
+  public long getLookups() {
+    return lookups.sum();
+  }
+
+  // Lookups answered by a block that was already stored
+  public long getHits() {
+    return hits.sum();
+  }
+
+  // Bytes not kept twice thanks to those hits (over time; later overwrites don't subtract)
+  public long getSavedBytes() {
+    return savedBytes.sum();
+  }
+
+  // Entries, including ones whose blocks were collected but not purged yet
+  public int size() {
+    return entries.size();
+  }
+}
+
+
+// Compiled glob over FileSystem paths
+// "/document/**/*.md" -> components ["document", "**", "*.md"]
+//   literal    "document" - looked up directly in the trie, no scan of siblings
+//   "**"       any number of directories (including none)
+//   wildcard   "*" (any run of characters within a component) and "?" (one character)
+// "*.md" style components match files by File.getExtension() without running the matcher
+// Matching is a small NFA: each visited node carries the set of pattern positions still alive
+// as a bit mask, so every node is visited at most once and results have no duplicates even
+// with several "**"
+public final class PathGlob {
+  private static final int LITERAL = 0;
+  private static final int ANY_DEPTH = 1;
+  private static final int WILDCARD = 2;
+
+  private final String[] parts;
+  private final int[] kinds;
+  // For "*.ext" components with a non-empty ext: the extension, otherwise null
+  private final String[] extensions;
+
+  private PathGlob(String[] parts, int[] kinds, String[] extensions) {
+    this.parts = parts;
+    this.kinds = kinds;
+    this.extensions = extensions;
+  }
+
+  // Compile a glob; it must be absolute ("/...") and have at most 63 components
+  public static PathGlob compile(String glob) {
+    if (glob == null || !glob.startsWith("/"))
+      throw new IllegalArgumentException("Glob must be an absolute path: " + glob);
+    List<String> parts = new ArrayList<>();
+    PathCursor cursor = new PathCursor(glob);
+    while (cursor.next()) {
+      String part = cursor.component();
+      // "**/**" means the same as "**"
+      if (part.equals("**") && !parts.isEmpty() && parts.get(parts.size() - 1).equals("**"))
+        continue;
+      parts.add(part);
+    }
+    if (parts.size() > 63)
+      throw new IllegalArgumentException("Glob has more than 63 components: " + glob);
+    int count = parts.size();
+    int[] kinds = new int[count];
+    String[] extensions = new String[count];
+    for (int i = 0; i < count; i++) {
+      String part = parts.get(i);
+      if (part.equals("**")) {
+        kinds[i] = ANY_DEPTH;
+      } else if (part.indexOf('*') >= 0 || part.indexOf('?') >= 0) {
+        kinds[i] = WILDCARD;
+        String suffix = part.substring(1);
+        if (part.startsWith("*.") && part.length() > 2 && suffix.lastIndexOf('.') == 0
+            && suffix.indexOf('*') < 0 && suffix.indexOf('?') < 0)
+          extensions[i] = suffix.substring(1);
+      } else {
+        kinds[i] = LITERAL;
+      }
+    }
+    return new PathGlob(parts.toArray(new String[0]), kinds, extensions);
+  }
+
+  // Positions alive at the root
+  long start() {
+    return closure(1L);
+  }
+
+  // The node reached with this mask matches the whole glob
+  boolean accepts(long mask) {
+    return (mask & (1L << parts.length)) != 0;
+  }
+
+  // Positions alive after descending into a child with this name
+  long step(long mask, FileSystemNode child) {
+    long next = 0;
+    for (long rest = mask; rest != 0; rest &= rest - 1) {
+      int i = Long.numberOfTrailingZeros(rest);
+      if (i == parts.length)
+        continue;
+      if (kinds[i] == ANY_DEPTH) {
+        next |= 1L << i;
+      } else if (matches(i, child)) {
+        next |= 1L << (i + 1);
+      }
+    }
+    return closure(next);
+  }
+
+  // If every alive position is a literal, the names to look up directly; otherwise null
+  String[] literalsOnly(long mask) {
+    int count = Long.bitCount(mask & ~(1L << parts.length));
+    String[] names = new String[count];
+    int n = 0;
+    for (long rest = mask; rest != 0; rest &= rest - 1) {
+      int i = Long.numberOfTrailingZeros(rest);
+      if (i == parts.length)
+        continue;
+      if (kinds[i] != LITERAL)
+        return null;
+      names[n++] = parts[i];
+    }
+    return names;
+  }
+
+  // "**" can match nothing, so the position after it is alive too
+  private long closure(long mask) {
+    for (int i = 0; i < parts.length; i++) {
+      if ((mask & (1L << i)) != 0 && kinds[i] == ANY_DEPTH)
+        mask |= 1L << (i + 1);
+    }
+    return mask;
+  }
+
+  private boolean matches(int i, FileSystemNode child) {
+    if (kinds[i] == LITERAL)
+      return parts[i].equals(child.getName());
+    // A file's extension answers "*.ext" the same way the wildcard would, except for names
+    // starting with a dot (".md" has no extension, but "*.md" matches it)
+    if (extensions[i] != null && child.isFile() && !child.getName().startsWith("."))
+      return extensions[i].equals(((File) child).getExtension());
+    return wildcardMatches(parts[i], child.getName());
+  }
+
+  // "*" and "?" matching with single-star backtracking
+  static boolean wildcardMatches(String pattern, String name) {
+    int p = 0;
+    int n = 0;
+    int star = -1;
+    int resume = 0;
+    while (n < name.length()) {
+      if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+        p++;
+        n++;
+      } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+        star = p++;
+        resume = n;
+      } else if (star >= 0) {
+        p = star + 1;
+        n = ++resume;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == '*')
+      p++;
+    return p == pattern.length();
+  }
+}
+
+
+// Lazy depth-first walk of the trie yielding the paths that match a glob
+// Only pending subtrees are kept (not results), so matching millions of paths needs no list
+// trySplit hands half of the pending subtrees to another spliterator (expanding a single big
+// directory first), which is how a parallel stream spreads the walk over the ForkJoinPool
+// The walk is lock-free and weakly consistent, like every read of a live FileSystem
+public final class GlobSpliterator implements Spliterator<String> {
+  // A subtree still to visit: its node, path and alive pattern positions
+  private static final class Pending {
+    final FileSystemNode node;
+    final String path;
+    final long mask;
+    // Children already queued (by trySplit); only the node's own match is left
+    final boolean expanded;
+
+    Pending(FileSystemNode node, String path, long mask, boolean expanded) {
+      this.node = node;
+      this.path = path;
+      this.mask = mask;
+      this.expanded = expanded;
+    }
+  }
+
+  private final PathGlob glob;
+  private final ArrayDeque<Pending> pending;
+
+  public GlobSpliterator(PathGlob glob, FileSystemNode root) {
+    this(glob, new ArrayDeque<>());
+    pending.push(new Pending(root, "/", glob.start(), false));
+  }
+
+  private GlobSpliterator(PathGlob glob, ArrayDeque<Pending> pending) {
+    this.glob = glob;
+    this.pending = pending;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super String> action) {
+    while (!pending.isEmpty()) {
+      Pending next = pending.pop();
+      if (!next.expanded)
+        expand(next);
+      // The root itself is never reported
+      if (!next.path.equals("/") && glob.accepts(next.mask)) {
+        action.accept(next.path);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Queue the children of a directory that can still lead to a match
+  private void expand(Pending parent) {
+    if (parent.node.isFile())
+      return;
+    String[] literals = glob.literalsOnly(parent.mask);
+    if (literals != null) {
+      // Only literal names can match here: look them up instead of scanning the directory
+      for (String name : literals) {
+        FileSystemNode child = parent.node.getChild(name);
+        if (child != null)
+          push(parent, child);
+      }
+      return;
+    }
+    // Pushed in reverse so children come out in directory order
+    List<FileSystemNode> children = new ArrayList<>(parent.node.getChildren());
+    for (int i = children.size() - 1; i >= 0; i--)
+      push(parent, children.get(i));
+  }
+
+  private void push(Pending parent, FileSystemNode child) {
+    long mask = glob.step(parent.mask, child);
+    if (mask == 0)
+      return;
+    String path = parent.path.equals("/") ? "/" + child.getName() : parent.path + "/" + child.getName();
+    pending.push(new Pending(child, path, mask, false));
+  }
+
+  @Override
+  public Spliterator<String> trySplit() {
+    // A single pending directory is opened up so its children can be shared out
+    if (pending.size() == 1) {
+      Pending only = pending.peek();
+      if (only.expanded || only.node.isFile() || only.node.getChildCount() < 2)
+        return null;
+      pending.pop();
+      expand(only);
+      // Keep the directory's own match
+      if (!only.path.equals("/") && glob.accepts(only.mask))
+        pending.addLast(new Pending(only.node, only.path, only.mask, true));
+      if (pending.size() < 2)
+        return null;
+    } else if (pending.size() < 2) {
+      return null;
+    }
+    ArrayDeque<Pending> half = new ArrayDeque<>();
+    int count = pending.size() / 2;
+    for (int i = 0; i < count; i++)
+      half.addLast(pending.pollLast());
+    return new GlobSpliterator(glob, half);
+  }
+
+  @Override
+  public long estimateSize() {
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public int characteristics() {
+    return NONNULL | DISTINCT;
+  }
+}
+
+
+// Writes a tree to any Appendable without recursion, so depth is limited by heap, not stack
+// TEXT gives the same lines as Directory.display/File.display:
+//   "    📁 cwa_lld (3 items)"
+//   "      📄 notes.md"
+// JSON_LINES gives one object per node for tooling:
+//   {"path":"/document/cwa_lld/notes.md","type":"file","size":42,"modifiedAt":1700000000000}
+// Output is collected in a bounded buffer and handed to the Appendable in large chunks, so a
+// synchronized sink like System.out is entered once per chunk instead of once per node
+// Lines can be limited by depth and paged with an offset and a limit, and the walk stops as
+// soon as the page is full
+public final class TreePrinter {
+  public enum Format {
+    TEXT, JSON_LINES
+  }
+
+  // Characters collected before they are handed to the Appendable
+  static final int BUFFER_SIZE = 8192;
+
+  private final Format format;
+  // Deepest level printed (the starting node is depth 0)
+  private final int maxDepth;
+  // Lines skipped before printing starts, and the most lines printed
+  private final long offset;
+  private final long limit;
+
+  // Print every node
+  public TreePrinter(Format format) {
+    this(format, Integer.MAX_VALUE, 0, Long.MAX_VALUE);
+  }
+
+  public TreePrinter(Format format, int maxDepth, long offset, long limit) {
+    this.format = format;
+    this.maxDepth = maxDepth;
+    this.offset = offset;
+    this.limit = limit;
+  }
+
+  // Print the tree below a node whose path is given (used for JSON paths); returns lines printed
+  public long print(FileSystemNode top, String topPath, Appendable out) throws IOException {
+    StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 256);
+    long line = 0;
+    long printed = 0;
+    // Pending nodes with their depth and path (paths only kept for JSON)
+    Deque<FileSystemNode> nodes = new ArrayDeque<>();
+    Deque<Integer> depths = new ArrayDeque<>();
+    Deque<String> paths = new ArrayDeque<>();
+    nodes.push(top);
+    depths.push(0);
+    paths.push(topPath);
+    while (!nodes.isEmpty() && printed < limit) {
+      FileSystemNode node = nodes.pop();
+      int depth = depths.pop();
+      String path = paths.pop();
+      if (line++ >= offset) {
+        if (format == Format.TEXT)
+          appendText(buffer, node, depth);
+        else
+          appendJson(buffer, node, path);
+        printed++;
+        if (buffer.length() >= BUFFER_SIZE) {
+          out.append(buffer);
+          buffer.setLength(0);
+        }
+      }
+      if (node.isFile() || depth >= maxDepth)
+        continue;
+      // Pushed in reverse so children are printed in directory order
+      List<FileSystemNode> children = new ArrayList<>(node.getChildren());
+      for (int i = children.size() - 1; i >= 0; i--) {
+        FileSystemNode child = children.get(i);
+        nodes.push(child);
+        depths.push(depth + 1);
+        paths.push(format == Format.TEXT ? ""
+            : path.equals("/") ? "/" + child.getName() : path + "/" + child.getName());
+      }
+    }
+    out.append(buffer);
+    if (out instanceof Flushable)
+      ((Flushable) out).flush();
+    return printed;
+  }
+
+  private static void appendText(StringBuilder buffer, FileSystemNode node, int depth) {
+    for (int i = 0; i < depth * 2; i++)
+      buffer.append(' ');
+    if (node.isFile()) {
+      buffer.append("📄 ").append(node.getName());
+    } else {
+      buffer.append("📁 ").append(node.getName())
+          .append(" (").append(node.getChildCount()).append(" items)");
+    }
+    buffer.append('\n');
+  }
+
+  private static void appendJson(StringBuilder buffer, FileSystemNode node, String path) {
+    buffer.append("{\"path\":");
+    appendJsonString(buffer, path);
+    if (node.isFile()) {
+      FileContent content = ((File) node).getData();
+      buffer.append(",\"type\":\"file\",\"size\":").append(content == null ? 0 : content.size());
+    } else {
+      buffer.append(",\"type\":\"directory\",\"children\":").append(node.getChildCount());
+    }
+    buffer.append(",\"modifiedAt\":").append(node.getModifiedAtMillis()).append("}\n");
+  }
+
+  private static void appendJsonString(StringBuilder buffer, String value) {
+    buffer.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        buffer.append('\\').append(c);
+      } else if (c < 0x20) {
+        buffer.append(String.format("\\u%04x", (int) c));
+      } else {
+        buffer.append(c);
+      }
+    }
+    buffer.append('"');
+  }
+}
+
+
+// Secondary indexes over the files of a FileSystem, kept up to date by every mutation
+//   by path       sorted map, so a deleted or moved subtree is one range ("/a/" .. "/a0")
+//   by extension  "md" -> paths
+//   by mtime      sorted by (modifiedAt, path): "modified in the last hour" is a range scan
+//   by size       sorted by (size, path)
+// Queries cost O(log n + k). Entries are keyed by canonical path ("/a/b.md", no repeated or
+// trailing slashes) because nodes don't know their parents
+// Directories aren't indexed. Queries are weakly consistent with concurrent writers
+public class FileIndex {
+  // What the index knows about one file
+  public static final class Entry {
+    private final String path;
+    private final String extension;
+    private final long modifiedAt;
+    private final long size;
+
+    Entry(String path, String extension, long modifiedAt, long size) {
+      this.path = path;
+      this.extension = extension;
+      this.modifiedAt = modifiedAt;
+      this.size = size;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+
+    public long getModifiedAt() {
+      return modifiedAt;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+
+  private static final Comparator<Entry> BY_MODIFIED =
+      Comparator.comparingLong(Entry::getModifiedAt).thenComparing(Entry::getPath);
+  private static final Comparator<Entry> BY_SIZE =
+      Comparator.comparingLong(Entry::getSize).thenComparing(Entry::getPath);
+
+  private final ConcurrentSkipListMap<String, Entry> byPath;
+  private final ConcurrentHashMap<String, Set<String>> byExtension;
+  private final ConcurrentSkipListSet<Entry> byModified;
+  private final ConcurrentSkipListSet<Entry> bySize;
+
+  public FileIndex() {
+    this.byPath = new ConcurrentSkipListMap<>();
+    this.byExtension = new ConcurrentHashMap<>();
+    this.byModified = new ConcurrentSkipListSet<>(BY_MODIFIED);
+    this.bySize = new ConcurrentSkipListSet<>(BY_SIZE);
+  }
+
+  // ---- Maintenance (called by FileSystem while it holds the lock of the node it changes) ----
+
+  // A file was created or its content changed
+  public void update(String path, File file) {
+    FileContent content = file.getData();
+    Entry entry = new Entry(path, file.getExtension(), file.getModifiedAtMillis(),
+        content == null ? 0 : content.size());
+    Entry previous = byPath.put(path, entry);
+    if (previous != null)
+      unlink(previous);
+    byExtension.computeIfAbsent(entry.extension, key -> new ConcurrentSkipListSet<>()).add(path);
+    byModified.add(entry);
+    bySize.add(entry);
+  }
+
+  // Index every file of a subtree that appeared at a path (copy, move target, initial build)
+  public void addTree(String path, FileSystemNode top) {
+    Deque<FileSystemNode> nodes = new ArrayDeque<>();
+    Deque<String> paths = new ArrayDeque<>();
+    nodes.push(top);
+    paths.push(path);
+    while (!nodes.isEmpty()) {
+      FileSystemNode node = nodes.pop();
+      String nodePath = paths.pop();
+      if (node.isFile()) {
+        update(nodePath, (File) node);
+        continue;
+      }
+      for (FileSystemNode child : node.getChildren()) {
+        nodes.push(child);
+        paths.push(nodePath.equals("/") ? "/" + child.getName() : nodePath + "/" + child.getName());
+      }
+    }
+  }
+
+  // A path was deleted: drop it and everything below it
+  public void removeTree(String path) {
+    Entry self = byPath.remove(path);
+    if (self != null)
+      unlink(self);
+    for (Entry entry : below(path).values()) {
+      if (byPath.remove(entry.path, entry))
+        unlink(entry);
+    }
+  }
+
+  // A subtree moved: re-key every file below the old path
+  public void moveTree(String source, String target) {
+    List<Entry> moved = new ArrayList<>();
+    Entry self = byPath.get(source);
+    if (self != null)
+      moved.add(self);
+    moved.addAll(below(source).values());
+    for (Entry entry : moved) {
+      if (!byPath.remove(entry.path, entry))
+        continue;
+      unlink(entry);
+      Entry renamed = new Entry(target + entry.path.substring(source.length()),
+          extensionOf(entry, source, target), entry.modifiedAt, entry.size);
+      byPath.put(renamed.path, renamed);
+      byExtension.computeIfAbsent(renamed.extension, key -> new ConcurrentSkipListSet<>())
+          .add(renamed.path);
+      byModified.add(renamed);
+      bySize.add(renamed);
+    }
+  }
+
+  // A renamed file may get a new extension; files below a renamed directory keep theirs
+  private static String extensionOf(Entry entry, String source, String target) {
+    if (!entry.path.equals(source))
+      return entry.extension;
+    String name = target.substring(target.lastIndexOf('/') + 1);
+    int dot = name.lastIndexOf('.');
+    return (dot > 0 ? name.substring(dot + 1) : "").intern();
+  }
+
+  // Entries strictly below a directory path: keys from "/a/" up to (excluding) "/a0"
+  private ConcurrentNavigableMap<String, Entry> below(String path) {
+    String prefix = path.equals("/") ? "/" : path + "/";
+    String end = prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1);
+    return byPath.subMap(prefix, true, end, false);
+  }
+
+  private void unlink(Entry entry) {
+    Set<String> paths = byExtension.get(entry.extension);
+    if (paths != null)
+      paths.remove(entry.path);
+    byModified.remove(entry);
+    bySize.remove(entry);
+  }
+
+  // ---- Queries ----
+
+  // Paths of files with an extension ("md"), in path order
+  public Collection<String> withExtension(String extension) {
+    Set<String> paths = byExtension.get(extension);
+    return paths == null ? Collections.emptySet() : Collections.unmodifiableSet(paths);
+  }
+
+  // Files modified in [fromMillis, toMillis), oldest first; extension may be null for any
+  public Stream<Entry> modifiedBetween(long fromMillis, long toMillis, String extension) {
+    Stream<Entry> range = byModified
+        .subSet(new Entry("", "", fromMillis, 0), true, new Entry("", "", toMillis, 0), false)
+        .stream();
+    return extension == null ? range : range.filter(entry -> entry.extension.equals(extension));
+  }
+
+  // Files whose size is in [minBytes, maxBytes], smallest first
+  public Stream<Entry> sizeBetween(long minBytes, long maxBytes) {
+    if (minBytes > maxBytes)
+      return Stream.empty();
+    // Path "" sorts before every real path, and U+FFFF after them
+    return bySize.subSet(new Entry("", "", 0, minBytes), true,
+        new Entry("\uffff", "", 0, maxBytes), true).stream();
+  }
+
+  // Entry for one path, or null if it isn't an indexed file
+  public Entry get(String path) {
+    return byPath.get(path);
+  }
+
+  public int size() {
+    return byPath.size();
+  }
+}
+
+
+// Receives every completed FileSystem operation (see FileSystem.addOperationListener)
+// Called on the thread that ran the operation, right after it finished, so implementations
+// must be cheap and thread-safe; FileSystemMetrics is the built-in one
+public interface OperationListener {
+  // READ covers getFileContent, read, transferTo and opening a stream or channel for reading;
+  // WRITE covers every content change, including streams when they are closed
+  enum Operation { CREATE, DELETE, MOVE, COPY, WRITE, READ }
+
+  // nanos is the wall time of the call; succeeded is false for "not found", "already exists" and
+  // the like, so callers can tell failed calls from cheap ones
+  void operationCompleted(Operation operation, String path, long nanos, boolean succeeded);
+}
+
+
+// Latency histogram in the style of HdrHistogram: log-linear buckets, 16 per power of two,
+// so any recorded value is known to within 1/16 (about 6%) of itself
+// Recording is one atomic increment on a bucket plus two adders, with no lock, and values
+// up to about 18 minutes (2^40 ns) are kept; longer ones land in the last bucket
+//   record(100)  -> 100 = 0b1100100, top bits 11001, bucket [96, 103]
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private final AtomicLongArray buckets =
+      new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    long value = Math.max(0, Math.min(nanos, (1L << (MAX_EXPONENT + 1)) - 1));
+    buckets.getAndIncrement(bucketOf(value));
+    count.increment();
+    total.add(value);
+    // Only a new maximum pays for a compare-and-set
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen, value))
+      seen = max.get();
+  }
+
+  // Values below 16 get a bucket each; above, the exponent picks a row of 16 buckets and the
+  // four bits under the leading one pick the bucket in it
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // Highest value that falls in a bucket
+  private static long highestIn(int bucket) {
+    if (bucket < SUB_BUCKETS)
+      return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : total.sum() / (double) n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  // Smallest bucket bound that at least the given fraction of the values are under
+  // Concurrent recording may be partly seen; the answer is still a value that was recorded
+  // to within a bucket
+  public long getValueAtPercentile(double percentile) {
+    long n = 0;
+    for (int i = 0; i < buckets.length(); i++)
+      n += buckets.get(i);
+    if (n == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      seen += buckets.get(i);
+      if (seen >= rank)
+        return Math.min(highestIn(i), max.get());
+    }
+    return max.get();
+  }
+
+  // Not atomic against concurrent recording: a value recorded meanwhile may be partly kept
+  public void reset() {
+    for (int i = 0; i < buckets.length(); i++)
+      buckets.set(i, 0);
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+}
+
+
+// JMX view of one operation's counters (standard MBean: implemented by OperationMetrics)
+public interface OperationMetricsMBean {
+  long getCount();
+
+  long getFailures();
+
+  double getMeanMicros();
+
+  double getMedianMicros();
+
+  double get99thPercentileMicros();
+
+  double getMaxMicros();
+
+  void reset();
+}
+
+
+// Counters of one operation: a latency histogram plus the number of failed calls
+public class OperationMetrics implements OperationMetricsMBean {
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder failures = new LongAdder();
+
+  void record(long nanos, boolean succeeded) {
+    latency.record(nanos);
+    if (!succeeded)
+      failures.increment();
+  }
+
+  public LatencyHistogram getLatency() {
+    return latency;
+  }
+
+  @Override
+  public long getCount() {
+    return latency.getCount();
+  }
+
+  @Override
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    return latency.getMean() / 1_000;
+  }
+
+  @Override
+  public double getMedianMicros() {
+    return latency.getValueAtPercentile(50) / 1_000.0;
+  }
+
+  @Override
+  public double get99thPercentileMicros() {
+    return latency.getValueAtPercentile(99) / 1_000.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return latency.getMax() / 1_000.0;
+  }
+
+  @Override
+  public void reset() {
+    latency.reset();
+    failures.reset();
+  }
+}
+
+
+// Shape of a tree at one moment: node counts by type, bytes of file content and how many
+// nodes sit at each depth (root is depth 0)
+// A subtree shared by copyPath is counted once per path it can be reached by, like a listing
+// Content is counted three ways: contentBytes as files report it, uniqueContentBytes with each
+// shared ContentBlock counted once, and storedContentBytes as those blocks are kept (deflated
+// or not), which gives the deduplication and compression ratios
+public class TreeStatistics {
+  private final long files;
+  private final long directories;
+  private final long contentBytes;
+  private final long uniqueContentBytes;
+  private final long storedContentBytes;
+  private final long[] nodesAtDepth;
+
+  public TreeStatistics(long files, long directories, long contentBytes, long uniqueContentBytes,
+      long storedContentBytes, long[] nodesAtDepth) {
+    this.files = files;
+    this.directories = directories;
+    this.contentBytes = contentBytes;
+    this.uniqueContentBytes = uniqueContentBytes;
+    this.storedContentBytes = storedContentBytes;
+    this.nodesAtDepth = nodesAtDepth;
+  }
+
+  // Walk a tree iteratively, so deep trees don't need a deep stack
+  public static TreeStatistics of(FileSystemNode root) {
+    long files = 0;
+    long directories = 0;
+    long contentBytes = 0;
+    long uniqueContentBytes = 0;
+    long storedContentBytes = 0;
+    Set<ContentBlock> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    long[] nodesAtDepth = new long[16];
+    ArrayDeque<FileSystemNode> nodes = new ArrayDeque<>();
+    ArrayDeque<Integer> depths = new ArrayDeque<>();
+    nodes.push(root);
+    depths.push(0);
+    while (!nodes.isEmpty()) {
+      FileSystemNode node = nodes.pop();
+      int depth = depths.pop();
+      if (depth == nodesAtDepth.length)
+        nodesAtDepth = Arrays.copyOf(nodesAtDepth, depth * 2);
+      nodesAtDepth[depth]++;
+      if (node.isFile()) {
+        files++;
+        FileContent data = ((File) node).getData();
+        if (data == null)
+          continue;
+        contentBytes += data.size();
+        for (int i = 0; i < data.getBlockCount(); i++) {
+          ContentBlock block = data.getBlock(i);
+          if (seen.add(block)) {
+            uniqueContentBytes += block.length();
+            storedContentBytes += block.storedLength();
+          }
+        }
+        continue;
+      }
+      directories++;
+      for (FileSystemNode child : node.getChildren()) {
+        nodes.push(child);
+        depths.push(depth + 1);
+      }
+    }
+    int deepest = nodesAtDepth.length;
+    while (deepest > 1 && nodesAtDepth[deepest - 1] == 0)
+      deepest--;
+    return new TreeStatistics(files, directories, contentBytes, uniqueContentBytes,
+        storedContentBytes, Arrays.copyOf(nodesAtDepth, deepest));
+  }
+
+  public long getFiles() {
+    return files;
+  }
+
+  public long getDirectories() {
+    return directories;
+  }
+
+  public long getContentBytes() {
+    return contentBytes;
+  }
+
+  public long getUniqueContentBytes() {
+    return uniqueContentBytes;
+  }
+
+  public long getStoredContentBytes() {
+    return storedContentBytes;
+  }
+
+  // Content bytes per unique byte: 2.0 means every block is used twice on average
+  public double getDedupRatio() {
+    return uniqueContentBytes == 0 ? 1 : contentBytes / (double) uniqueContentBytes;
+  }
+
+  // Unique bytes per stored byte: 3.0 means compressed blocks take a third of their size
+  public double getCompressionRatio() {
+    return storedContentBytes == 0 ? 1 : uniqueContentBytes / (double) storedContentBytes;
+  }
+
+  public int getMaxDepth() {
+    return nodesAtDepth.length - 1;
+  }
+
+  // nodesAtDepth[d] = number of nodes d levels below the root
+  public long[] getNodesAtDepth() {
+    return nodesAtDepth.clone();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d files, %d directories, %d content bytes (dedup %.2fx, compression "
+        + "%.2fx), nodes by depth %s", files, directories, contentBytes, getDedupRatio(),
+        getCompressionRatio(), Arrays.toString(nodesAtDepth));
+  }
+}
+
+
+// JMX view of the tree (standard MBean: implemented by TreeMetrics)
+// Every read walks the whole tree, so poll it at human rates, not in a tight loop
+public interface TreeMetricsMBean {
+  long getFiles();
+
+  long getDirectories();
+
+  long getContentBytes();
+
+  double getDedupRatio();
+
+  double getCompressionRatio();
+
+  int getMaxDepth();
+
+  long[] getNodesAtDepth();
+}
+
+
+public class TreeMetrics implements TreeMetricsMBean {
+  private final FileSystem fs;
+
+  public TreeMetrics(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  @Override
+  public long getFiles() {
+    return fs.getTreeStatistics().getFiles();
+  }
+
+  @Override
+  public long getDirectories() {
+    return fs.getTreeStatistics().getDirectories();
+  }
+
+  @Override
+  public long getContentBytes() {
+    return fs.getTreeStatistics().getContentBytes();
+  }
+
+  @Override
+  public double getDedupRatio() {
+    return fs.getTreeStatistics().getDedupRatio();
+  }
+
+  @Override
+  public double getCompressionRatio() {
+    return fs.getTreeStatistics().getCompressionRatio();
+  }
+
+  @Override
+  public int getMaxDepth() {
+    return fs.getTreeStatistics().getMaxDepth();
+  }
+
+  @Override
+  public long[] getNodesAtDepth() {
+    return fs.getTreeStatistics().getNodesAtDepth();
+  }
+}
+
+
+// Per-operation counts and latency histograms for a FileSystem, fed as an OperationListener
+// (FileSystem.enableMetrics registers one), and publishable over JMX as
+//   <domain>:type=Operation,name=create   ... one per operation
+//   <domain>:type=Tree                    files, directories, content bytes, dedup and
+//                                         compression ratios, depth distribution
+public class FileSystemMetrics implements OperationListener {
+  private final FileSystem fs;
+  private final EnumMap<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+  private final List<ObjectName> registered = new ArrayList<>();
+
+  public FileSystemMetrics(FileSystem fs) {
+    this.fs = fs;
+    for (Operation operation : Operation.values())
+      operations.put(operation, new OperationMetrics());
+  }
+
+  @Override
+  public void operationCompleted(Operation operation, String path, long nanos, boolean succeeded) {
+    operations.get(operation).record(nanos, succeeded);
+  }
+
+  public OperationMetrics get(Operation operation) {
+    return operations.get(operation);
+  }
+
+  // Walks the tree: see TreeStatistics
+  public TreeStatistics getTreeStatistics() {
+    return fs.getTreeStatistics();
+  }
+
+  // Register the MBeans with the platform MBean server under the given domain
+  public synchronized void registerMBeans(String domain) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+      ObjectName name = new ObjectName(
+          domain + ":type=Operation,name=" + entry.getKey().name().toLowerCase());
+      server.registerMBean(entry.getValue(), name);
+      registered.add(name);
+    }
+    ObjectName tree = new ObjectName(domain + ":type=Tree");
+    server.registerMBean(new TreeMetrics(fs), tree);
+    registered.add(tree);
+  }
+
+  public synchronized void unregisterMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : registered)
+      server.unregisterMBean(name);
+    registered.clear();
+  }
+
+  public void reset() {
+    for (OperationMetrics metrics : operations.values())
+      metrics.reset();
+  }
+
+  // One line per operation that ran: "create  count 1200  failed 3  mean 1.2us  p50 ... "
+  @Override
+  public String toString() {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<Operation, OperationMetrics> entry : operations.entrySet()) {
+      OperationMetrics metrics = entry.getValue();
+      if (metrics.getCount() == 0)
+        continue;
+      summary.append(String.format(
+          "%-7s count %d  failed %d  mean %.1fus  p50 %.1fus  p99 %.1fus  max %.1fus%n",
+          entry.getKey().name().toLowerCase(), metrics.getCount(), metrics.getFailures(),
+          metrics.getMeanMicros(), metrics.getMedianMicros(), metrics.get99thPercentileMicros(),
+          metrics.getMaxMicros()));
+    }
+    return summary.toString();
+  }
+}
+
+
+// One change seen by a watcher (see FileSystem.watch)
+// Paths are canonical ("/a/b"). DELETED of a directory stands for its whole subtree, and a
+// move is reported as DELETED of the source and CREATED of the target (a directory created by
+// a move or copy arrives with its subtree). MODIFIED of a directory means it was deleted and
+// created again between two batches: its old subtree is gone
+// OVERFLOW means events were lost (the subscriber fell too far behind, or writers outran the
+// dispatcher): its path is the watched prefix, and the subscriber should re-read it
+public final class WatchEvent {
+  public enum Kind { CREATED, DELETED, MODIFIED, OVERFLOW }
+
+  private final Kind kind;
+  private final String path;
+
+  public WatchEvent(Kind kind, String path) {
+    this.kind = kind;
+    this.path = path;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public String toString() {
+    return kind + " " + path;
+  }
+}
+
+
+// Receives batches of coalesced events for one watch, oldest change first
+// Called on a notifier thread, never on the writer's; calls for one watch never overlap
+public interface WatchListener {
+  void onEvents(List<WatchEvent> events);
+}
+
+
+// Delivers FileSystem changes to watchers without making writers wait for them
+//   writers --publish--> bounded ring --dispatcher thread--> per-watch pending map --pool--> listener
+// publish never blocks: if the ring is full the event is dropped and every watch gets OVERFLOW
+// Each watch keeps at most one pending event per path, so a burst of writes to a file while its
+// listener is busy comes out as one MODIFIED; a watch with too many pending paths is reset to a
+// single OVERFLOW. A slow listener only delays its own watch
+public final class ChangeNotifier {
+  static final int RING_CAPACITY = 1 << 16;
+  static final int MAX_PENDING_PATHS = 4096;
+
+  // Bounded multi-producer ring (Vyukov): sequences[i] says whether slot i is free for the
+  // producer at that position or filled for the consumer
+  private final AtomicReferenceArray<WatchEvent> slots = new AtomicReferenceArray<>(RING_CAPACITY);
+  private final AtomicLongArray sequences = new AtomicLongArray(RING_CAPACITY);
+  private final AtomicLong tail = new AtomicLong();
+  private long head;
+  private volatile boolean dropped;
+
+  private final CopyOnWriteArrayList<Watch> watches = new CopyOnWriteArrayList<>();
+  private final ExecutorService delivery;
+  private final Thread dispatcher;
+  private volatile boolean sleeping;
+  private volatile boolean closed;
+
+  public ChangeNotifier() {
+    for (int i = 0; i < RING_CAPACITY; i++)
+      sequences.set(i, i);
+    delivery = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "fs-watch-delivery");
+      thread.setDaemon(true);
+      return thread;
+    });
+    dispatcher = new Thread(this::dispatch, "fs-watch-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  // A registered watch; close() stops delivery (a batch already being delivered completes)
+  public final class Watch implements AutoCloseable {
+    private final String prefix;
+    private final WatchListener listener;
+    // Path -> pending kind, in order of first change; guarded by this watch
+    private LinkedHashMap<String, WatchEvent.Kind> pending = new LinkedHashMap<>();
+    private boolean overflowed;
+    // A delivery task is queued or running for this watch
+    private boolean scheduled;
+
+    private Watch(String prefix, WatchListener listener) {
+      this.prefix = prefix;
+      this.listener = listener;
+    }
+
+    public String getPrefix() {
+      return prefix;
+    }
+
+    // The change is at or below the prefix, or is a subtree change above it
+    private boolean matches(WatchEvent event) {
+      String path = event.getPath();
+      return isAtOrBelow(path, prefix)
+          || (event.getKind() != WatchEvent.Kind.MODIFIED && isAtOrBelow(prefix, path));
+    }
+
+    // Merge an event into the pending one for its path; returns true if delivery must be scheduled
+    private synchronized boolean add(WatchEvent event) {
+      if (!overflowed) {
+        String path = event.getPath();
+        // Changes below a deleted directory are moot, and must not be delivered after the delete
+        if (event.getKind() == WatchEvent.Kind.DELETED)
+          pending.keySet().removeIf(pendingPath ->
+              pendingPath.length() > path.length() && isAtOrBelow(pendingPath, path));
+        WatchEvent.Kind merged = coalesce(pending.get(path), event.getKind());
+        if (merged == null)
+          pending.remove(path);
+        else
+          pending.put(path, merged);
+        if (pending.size() > MAX_PENDING_PATHS)
+          overflow();
+      }
+      return schedule();
+    }
+
+    private synchronized void overflow() {
+      overflowed = true;
+      pending.clear();
+    }
+
+    private synchronized boolean schedule() {
+      if (scheduled || (pending.isEmpty() && !overflowed))
+        return false;
+      scheduled = true;
+      return true;
+    }
+
+    // Take everything pending as one batch, or finish the task if nothing is left
+    private synchronized List<WatchEvent> takeBatch() {
+      List<WatchEvent> batch;
+      if (overflowed) {
+        batch = List.of(new WatchEvent(WatchEvent.Kind.OVERFLOW, prefix));
+        overflowed = false;
+      } else if (!pending.isEmpty()) {
+        batch = new ArrayList<>(pending.size());
+        for (Map.Entry<String, WatchEvent.Kind> entry : pending.entrySet())
+          batch.add(new WatchEvent(entry.getValue(), entry.getKey()));
+        pending = new LinkedHashMap<>();
+      } else {
+        scheduled = false;
+        return null;
+      }
+      return batch;
+    }
+
+    private void deliver() {
+      List<WatchEvent> batch;
+      while ((batch = takeBatch()) != null) {
+        if (!watches.contains(this))
+          continue;
+        try {
+          listener.onEvents(batch);
+        } catch (RuntimeException e) {
+          // A failing listener must not stop delivery to itself or to others
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      watches.remove(this);
+    }
+  }
+
+  public Watch watch(String prefix, WatchListener listener) {
+    Watch watch = new Watch(prefix, listener);
+    watches.add(watch);
+    return watch;
+  }
+
+  public boolean hasWatches() {
+    return !watches.isEmpty();
+  }
+
+  // Called by writers, inside the lock that orders the change; never blocks
+  public void publish(WatchEvent.Kind kind, String path) {
+    WatchEvent event = new WatchEvent(kind, path);
+    long position = tail.get();
+    while (true) {
+      int slot = (int) (position & (RING_CAPACITY - 1));
+      long sequence = sequences.get(slot);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slots.set(slot, event);
+          sequences.set(slot, position + 1);
+          break;
+        }
+        position = tail.get();
+      } else if (sequence < position) {
+        // Full: drop the event rather than make the writer wait
+        dropped = true;
+        break;
+      } else {
+        position = tail.get();
+      }
+    }
+    if (sleeping)
+      LockSupport.unpark(dispatcher);
+  }
+
+  // Next event, or null if the ring is empty (dispatcher thread only)
+  private WatchEvent poll() {
+    int slot = (int) (head & (RING_CAPACITY - 1));
+    if (sequences.get(slot) != head + 1)
+      return null;
+    WatchEvent event = slots.get(slot);
+    slots.set(slot, null);
+    sequences.set(slot, head + RING_CAPACITY);
+    head++;
+    return event;
+  }
+
+  private boolean isEmpty() {
+    return sequences.get((int) (head & (RING_CAPACITY - 1))) != head + 1;
+  }
+
+  private void dispatch() {
+    Set<Watch> ready = Collections.newSetFromMap(new IdentityHashMap<>());
+    long dispatched = 0;
+    while (!closed) {
+      if (dropped) {
+        dropped = false;
+        for (Watch watch : watches) {
+          watch.overflow();
+          if (watch.schedule())
+            ready.add(watch);
+        }
+      }
+      WatchEvent event = poll();
+      if (event == null) {
+        // Hand out what this round collected, then sleep until a writer publishes
+        hand(ready);
+        sleeping = true;
+        // A publish after this check sees sleeping and unparks us
+        if (!closed && isEmpty() && !dropped)
+          LockSupport.park(this);
+        sleeping = false;
+        continue;
+      }
+      for (Watch watch : watches) {
+        if (watch.matches(event) && watch.add(event))
+          ready.add(watch);
+      }
+      // Under a steady stream of events, don't hold batches back until the ring runs dry
+      if (ready.size() >= 64 || ++dispatched % 1024 == 0)
+        hand(ready);
+    }
+  }
+
+  private void hand(Set<Watch> ready) {
+    try {
+      for (Watch watch : ready)
+        delivery.execute(watch::deliver);
+    } catch (RejectedExecutionException e) {
+      // Closed meanwhile
+    }
+    ready.clear();
+  }
+
+  // Stop dispatching; pending events are discarded
+  public void close() {
+    closed = true;
+    LockSupport.unpark(dispatcher);
+    delivery.shutdown();
+  }
+
+  // What one pending change and a newer one on the same path amount to (null: nothing)
+  //   CREATED + MODIFIED -> CREATED     CREATED + DELETED -> nothing (never seen)
+  //   DELETED + CREATED  -> MODIFIED    MODIFIED + DELETED -> DELETED
+  static WatchEvent.Kind coalesce(WatchEvent.Kind pending, WatchEvent.Kind next) {
+    if (pending == null)
+      return next;
+    if (pending == WatchEvent.Kind.CREATED)
+      return next == WatchEvent.Kind.DELETED ? null : WatchEvent.Kind.CREATED;
+    if (pending == WatchEvent.Kind.DELETED)
+      return next == WatchEvent.Kind.CREATED ? WatchEvent.Kind.MODIFIED : next;
+    return next;
+  }
+
+  // "/a/b" is at or below "/a" and "/"; "/ab" is not below "/a"
+  static boolean isAtOrBelow(String path, String prefix) {
+    if (prefix.length() == 1)
+      return true;
+    return path.startsWith(prefix)
+        && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/');
+  }
+}
+
+
+// Durable backing store for a FileSystem
+// Layout of the store directory:
+//   fs.data       - append-only file contents, memory-mapped in fixed-size segments
+//   fs.wal        - append-only log of createPath/deletePath/setFileContent since the checkpoint
+//   fs.checkpoint - binary preorder dump of the trie metadata (names, types, timestamps,
+//                   content extents)
+// File contents never go through the log: setFileContent appends the bytes to fs.data and the
+// log record only references them by (offset, length). Recovery loads the checkpoint, which
+// references contents the same way, and replays the log on top, so startup cost is proportional
+// to the number of nodes, not to the amount of content
+// Every log record carries a sequence number and the checkpoint the last one it contains, so
+// a crash between publishing a checkpoint and truncating the log doesn't replay the log twice
+public class FileSystemStore implements Closeable {
+  // Contents are packed into mapped segments of this size; bigger contents get their own mapping
+  static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+  static final int CHECKPOINT_MAGIC = 0x46534333; // "FSC3"
+
+  // Log record types
+  static final byte OP_CREATE_DIRECTORY = 1;
+  static final byte OP_CREATE_FILE = 2;
+  static final byte OP_DELETE = 3;
+  static final byte OP_WRITE = 4;
+  static final byte OP_APPEND = 5;
+  static final byte OP_MOVE = 6;
+  static final byte OP_COPY = 7;
+
+  // Node types in the checkpoint
+  private static final byte NODE_DIRECTORY = 0;
+  private static final byte NODE_FILE = 1;
+
+  // Location of one file's content inside fs.data
+  public static final class Extent {
+    private final long offset;
+    private final int length;
+    // Read-only view of the mapped bytes
+    private final ByteBuffer bytes;
+
+    Extent(long offset, int length, ByteBuffer bytes) {
+      this.offset = offset;
+      this.length = length;
+      this.bytes = bytes;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    // A fresh view, so callers can't disturb each other's position
+    public ByteBuffer getBytes() {
+      return bytes.duplicate();
+    }
+  }
+
+  // Callback used to replay the log over the checkpointed tree
+  public interface Replay {
+    void create(String path, boolean isFile);
+    void delete(String path);
+    // extent is null when the content was set to null
+    void write(String path, Extent extent);
+    void append(String path, Extent extent);
+    void move(String source, String target);
+    void copy(String source, String target);
+  }
+
+  private final Path directory;
+  private final FileChannel data;
+  private final FileChannel wal;
+  // Force data and log to disk on every mutation (otherwise only on checkpoint/close)
+  private final boolean syncEveryWrite;
+  // Mapped segments of fs.data by segment index, and standalone mappings of large contents
+  private final ConcurrentHashMap<Long, MappedByteBuffer> segments;
+  private final ConcurrentHashMap<Long, MappedByteBuffer> largeContents;
+  // Next free byte in fs.data
+  private long dataEnd;
+  // Sequence number of the last log record written or replayed (guarded by this)
+  private long lastSequence;
+  // Last record already contained in the loaded checkpoint; replay skips records up to it
+  private long checkpointSequence;
+  // Reused buffer for encoding log records (guarded by this)
+  private ByteBuffer record;
+  private final CRC32 crc;
+
+  private FileSystemStore(Path directory, boolean syncEveryWrite) throws IOException {
+    Files.createDirectories(directory);
+    this.directory = directory;
+    this.syncEveryWrite = syncEveryWrite;
+    this.data = FileChannel.open(directory.resolve("fs.data"),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.wal = FileChannel.open(directory.resolve("fs.wal"),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.segments = new ConcurrentHashMap<>();
+    this.largeContents = new ConcurrentHashMap<>();
+    this.dataEnd = 0;
+    this.record = ByteBuffer.allocate(4096);
+    this.crc = new CRC32();
+  }
+
+  // Open (or create) a store directory
+  public static FileSystemStore open(Path directory, boolean syncEveryWrite) throws IOException {
+    return new FileSystemStore(directory, syncEveryWrite);
+  }
+
+  // ---- Contents ----
+
+  // Copy content bytes into fs.data and return where they went
+  public synchronized Extent appendContent(FileContent content) throws IOException {
+    if (content.size() > Integer.MAX_VALUE)
+      throw new IOException("Content of " + content.size() + " bytes is too large for one write");
+    int length = (int) content.size();
+    long offset;
+    MappedByteBuffer target;
+    int position;
+    if (length > SEGMENT_SIZE / 4) {
+      // Large content: its own mapping, starting at the next segment boundary
+      offset = alignToSegment(dataEnd);
+      target = data.map(FileChannel.MapMode.READ_WRITE, offset, length);
+      largeContents.put(offset, target);
+      position = 0;
+      dataEnd = alignToSegment(offset + length);
+    } else {
+      // Small content: pack into the current segment, moving on if it doesn't fit
+      long segmentStart = dataEnd - dataEnd % SEGMENT_SIZE;
+      if (dataEnd + length > segmentStart + SEGMENT_SIZE)
+        dataEnd = segmentStart + SEGMENT_SIZE;
+      offset = dataEnd;
+      target = segment(offset / SEGMENT_SIZE);
+      position = (int) (offset % SEGMENT_SIZE);
+      dataEnd = offset + length;
+    }
+    ByteBuffer view = target.duplicate();
+    view.position(position);
+    content.read(0, view);
+    if (syncEveryWrite)
+      target.force(position, length);
+    return new Extent(offset, length, slice(target, position, length));
+  }
+
+  // Look up content stored at an extent (used while loading the checkpoint and the log)
+  Extent content(long offset, int length) throws IOException {
+    dataEnd = Math.max(dataEnd, offset + length);
+    if (length > SEGMENT_SIZE / 4) {
+      MappedByteBuffer mapped = largeContents.get(offset);
+      if (mapped == null) {
+        mapped = data.map(FileChannel.MapMode.READ_WRITE, offset, length);
+        largeContents.put(offset, mapped);
+      }
+      dataEnd = Math.max(dataEnd, alignToSegment(offset + length));
+      return new Extent(offset, length, slice(mapped, 0, length));
+    }
+    MappedByteBuffer mapped = segment(offset / SEGMENT_SIZE);
+    return new Extent(offset, length, slice(mapped, (int) (offset % SEGMENT_SIZE), length));
+  }
+
+  private MappedByteBuffer segment(long index) throws IOException {
+    MappedByteBuffer mapped = segments.get(index);
+    if (mapped == null) {
+      mapped = data.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_SIZE, SEGMENT_SIZE);
+      MappedByteBuffer raced = segments.putIfAbsent(index, mapped);
+      if (raced != null)
+        mapped = raced;
+    }
+    return mapped;
+  }
+
+  private static ByteBuffer slice(MappedByteBuffer mapped, int position, int length) {
+    ByteBuffer view = mapped.duplicate();
+    view.position(position);
+    view.limit(position + length);
+    return view.slice().asReadOnlyBuffer();
+  }
+
+  private static long alignToSegment(long offset) {
+    return (offset + SEGMENT_SIZE - 1) / SEGMENT_SIZE * SEGMENT_SIZE;
+  }
+
+  // ---- Write-ahead log ----
+  // Record: [int length][int crc32][byte op][long sequence][long time][int pathLength][path bytes]
+  // (time = when the change was logged, epoch millis) followed by
+  //   [long offset][int length] for OP_WRITE and OP_APPEND (length -1 for null content)
+  //   [int targetLength][target bytes] for OP_MOVE and OP_COPY
+
+  public void logCreate(String path, boolean isFile) {
+    append(isFile ? OP_CREATE_FILE : OP_CREATE_DIRECTORY, path, null, null);
+  }
+
+  public void logDelete(String path) {
+    append(OP_DELETE, path, null, null);
+  }
+
+  public void logWrite(String path, Extent extent) {
+    append(OP_WRITE, path, null, extent);
+  }
+
+  public void logAppend(String path, Extent extent) {
+    append(OP_APPEND, path, null, extent);
+  }
+
+  public void logMove(String source, String target) {
+    append(OP_MOVE, source, target, null);
+  }
+
+  public void logCopy(String source, String target) {
+    append(OP_COPY, source, target, null);
+  }
+
+  private synchronized void append(byte op, String path, String target, Extent extent) {
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    byte[] targetBytes = target == null ? null : target.getBytes(StandardCharsets.UTF_8);
+    boolean hasExtent = op == OP_WRITE || op == OP_APPEND;
+    int bodyLength = 1 + 8 + 8 + 4 + pathBytes.length + (hasExtent ? 12 : 0)
+        + (targetBytes == null ? 0 : 4 + targetBytes.length);
+    if (record.capacity() < 8 + bodyLength)
+      record = ByteBuffer.allocate(Math.max(8 + bodyLength, record.capacity() * 2));
+    record.clear();
+    record.position(8);
+    record.put(op);
+    record.putLong(++lastSequence);
+    record.putLong(FileSystemNode.now());
+    record.putInt(pathBytes.length);
+    record.put(pathBytes);
+    if (hasExtent) {
+      record.putLong(extent == null ? 0 : extent.offset);
+      record.putInt(extent == null ? -1 : extent.length);
+    }
+    if (targetBytes != null) {
+      record.putInt(targetBytes.length);
+      record.put(targetBytes);
+    }
+    crc.reset();
+    crc.update(record.array(), 8, bodyLength);
+    record.putInt(0, bodyLength);
+    record.putInt(4, (int) crc.getValue());
+    record.flip();
+    try {
+      while (record.hasRemaining())
+        wal.write(record, wal.size());
+      if (syncEveryWrite)
+        wal.force(false);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to append to " + directory.resolve("fs.wal"), e);
+    }
+  }
+
+  // Replay every intact log record; a torn record at the tail (crash mid-write) ends the replay
+  // and is cut off so new records follow the last good one
+  public synchronized void replay(Replay target) throws IOException {
+    long size = wal.size();
+    if (size == 0)
+      return;
+    ByteBuffer log = wal.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    long good = 0;
+    // Changes are replayed at the time they were logged
+    long[] time = new long[1];
+    FileSystemNode.replayingAt(time);
+    try {
+      while (log.remaining() >= 8) {
+        int bodyLength = log.getInt();
+        int checksum = log.getInt();
+        if (bodyLength <= 0 || bodyLength > log.remaining())
+          break;
+        ByteBuffer body = log.slice();
+        body.limit(bodyLength);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum)
+          break;
+        byte op = body.get();
+        long sequence = body.getLong();
+        lastSequence = Math.max(lastSequence, sequence);
+        // Already in the checkpoint (the log wasn't truncated after it was written)
+        if (sequence <= checkpointSequence) {
+          log.position(log.position() + bodyLength);
+          good = log.position();
+          continue;
+        }
+        time[0] = body.getLong();
+        byte[] pathBytes = new byte[body.getInt()];
+        body.get(pathBytes);
+        String path = new String(pathBytes, StandardCharsets.UTF_8);
+        switch (op) {
+          case OP_CREATE_DIRECTORY:
+          case OP_CREATE_FILE:
+            target.create(path, op == OP_CREATE_FILE);
+            break;
+          case OP_DELETE:
+            target.delete(path);
+            break;
+          case OP_WRITE:
+          case OP_APPEND:
+            long offset = body.getLong();
+            int length = body.getInt();
+            Extent extent = length < 0 ? null : content(offset, length);
+            if (op == OP_WRITE)
+              target.write(path, extent);
+            else
+              target.append(path, extent);
+            break;
+          case OP_MOVE:
+          case OP_COPY:
+            byte[] targetBytes = new byte[body.getInt()];
+            body.get(targetBytes);
+            String targetPath = new String(targetBytes, StandardCharsets.UTF_8);
+            if (op == OP_MOVE)
+              target.move(path, targetPath);
+            else
+              target.copy(path, targetPath);
+            break;
+          default:
+            throw new IOException("Unknown log record type " + op + " at " + good);
+        }
+        log.position(log.position() + bodyLength);
+        good = log.position();
+      }
+    } finally {
+      FileSystemNode.replayingAt(null);
+    }
+    if (good < size)
+      wal.truncate(good);
+  }
+
+  // ---- Checkpoint ----
+
+  // Write the whole trie to fs.checkpoint and start a fresh log
+  // The checkpoint records the last log record it contains: if we crash after publishing it but
+  // before the log is truncated, the next open skips the records it already has
+  // The caller must hold the file system's structure lock exclusively (FileSystem.checkpoint
+  // does), so no mutation runs meanwhile: records are not idempotent (replaying an OP_APPEND
+  // twice duplicates its bytes), so a mutation both in the checkpoint and in the new log would
+  // be applied twice on the next open
+  public synchronized void checkpoint(FileSystemNode root) throws IOException {
+    Path temporary = directory.resolve("fs.checkpoint.tmp");
+    data.force(false);
+    for (MappedByteBuffer mapped : segments.values())
+      mapped.force();
+    for (MappedByteBuffer mapped : largeContents.values())
+      mapped.force();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(temporary), 1 << 16))) {
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(lastSequence);
+      // Preorder: a directory is followed by its child count and then its children
+      Deque<FileSystemNode> stack = new ArrayDeque<>();
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        FileSystemNode node = stack.pop();
+        out.writeByte(node.isFile() ? NODE_FILE : NODE_DIRECTORY);
+        out.writeUTF(node.getName());
+        out.writeLong(node.getCreatedAtMillis());
+        out.writeLong(node.getModifiedAtMillis());
+        if (node.isFile()) {
+          // Extent count (-1 for no content), then (offset, length) per extent
+          FileContent content = ((File) node).getData();
+          if (content == null) {
+            out.writeInt(-1);
+          } else {
+            Extent[] extents = content.getExtents();
+            out.writeInt(extents.length);
+            for (Extent extent : extents) {
+              out.writeLong(extent.offset);
+              out.writeInt(extent.length);
+            }
+          }
+        } else {
+          List<FileSystemNode> children = new ArrayList<>(node.getChildren());
+          out.writeInt(children.size());
+          for (int i = children.size() - 1; i >= 0; i--)
+            stack.push(children.get(i));
+        }
+      }
+    }
+    try (FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      written.force(true);
+    }
+    Files.move(temporary, directory.resolve("fs.checkpoint"),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    wal.truncate(0);
+    wal.force(true);
+  }
+
+  // Rebuild the trie from fs.checkpoint; returns null if there is no checkpoint yet
+  public Directory loadCheckpoint() throws IOException {
+    Path file = directory.resolve("fs.checkpoint");
+    if (!Files.exists(file))
+      return null;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        Files.newInputStream(file), 1 << 16))) {
+      if (in.readInt() != CHECKPOINT_MAGIC)
+        throw new IOException("Not a file system checkpoint: " + file);
+      long sequence = in.readLong();
+      synchronized (this) {
+        checkpointSequence = sequence;
+        lastSequence = Math.max(lastSequence, sequence);
+      }
+      in.readByte();
+      Directory root = new Directory(in.readUTF());
+      // Directories still waiting for children, with how many are left and their timestamps
+      // (put back once all children are linked, since linking a child touches the directory)
+      Deque<FileSystemNode> parents = new ArrayDeque<>();
+      Deque<Integer> remaining = new ArrayDeque<>();
+      Deque<long[]> times = new ArrayDeque<>();
+      times.push(new long[] {in.readLong(), in.readLong()});
+      parents.push(root);
+      remaining.push(in.readInt());
+      while (!parents.isEmpty()) {
+        if (remaining.peek() == 0) {
+          long[] time = times.pop();
+          parents.pop().restoreTimes(time[0], time[1]);
+          remaining.pop();
+          continue;
+        }
+        remaining.push(remaining.pop() - 1);
+        byte type = in.readByte();
+        String name = in.readUTF();
+        long createdAt = in.readLong();
+        long modifiedAt = in.readLong();
+        if (type == NODE_FILE) {
+          File child = new File(name);
+          int extents = in.readInt();
+          if (extents >= 0) {
+            FileContent content = FileContent.EMPTY;
+            for (int i = 0; i < extents; i++) {
+              long offset = in.readLong();
+              int length = in.readInt();
+              content = content.append(FileContent.stored(content(offset, length)));
+            }
+            child.setData(content);
+          }
+          child.restoreTimes(createdAt, modifiedAt);
+          parents.peek().addChild(name, child);
+        } else {
+          Directory child = new Directory(name);
+          parents.peek().addChild(name, child);
+          times.push(new long[] {createdAt, modifiedAt});
+          parents.push(child);
+          remaining.push(in.readInt());
+        }
+      }
+      return root;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    data.force(true);
+    wal.force(true);
+    data.close();
+    wal.close();
+  }
+}
+
+
+// Lets per-node writers run together while a structural operation (move, copy, snapshot,
+// checkpoint) waits for them to drain and then runs alone
+// A ReentrantReadWriteLock would make every create, delete and write bump one shared reader
+// count, so all writers would fight over its cache line. Here a writer only bumps the counter
+// of its own stripe (stripes are picked by thread and padded to separate cache lines), and then
+// checks that no structural operation is running; a structural operation raises its flag and
+// then waits until every stripe is back to zero. Both sides write first and read second, so at
+// least one of them sees the other
+// Shared sections don't nest: a thread in one must not enter another (a structural operation
+// waiting in between would never see its stripe drain)
+public final class StructureLock {
+  // Longs per stripe, so that two stripes never share a cache line
+  private static final int PADDING = 16;
+
+  private final AtomicLongArray writers;
+  private final int mask;
+  // Held by the structural operation running (or waiting for writers to drain)
+  private final ReentrantLock exclusive = new ReentrantLock();
+  private volatile boolean structural;
+
+  public StructureLock() {
+    int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+    this.writers = new AtomicLongArray(stripes * PADDING);
+    this.mask = stripes - 1;
+  }
+
+  // Enter a per-node operation; pass the result to exitShared
+  public int enterShared() {
+    int slot = stripe() * PADDING;
+    while (true) {
+      writers.getAndIncrement(slot);
+      if (!structural)
+        return slot;
+      // A structural operation is running or draining: step back and wait for it to finish
+      writers.getAndDecrement(slot);
+      exclusive.lock();
+      exclusive.unlock();
+    }
+  }
+
+  public void exitShared(int slot) {
+    writers.getAndDecrement(slot);
+  }
+
+  // Wait until no per-node operation is running, and keep new ones out until unlockExclusive
+  public void lockExclusive() {
+    exclusive.lock();
+    if (exclusive.getHoldCount() > 1)
+      return;
+    structural = true;
+    for (int slot = 0; slot < writers.length(); slot += PADDING) {
+      for (int spins = 0; writers.get(slot) != 0; spins++) {
+        if (spins < 100)
+          Thread.onSpinWait();
+        else
+          Thread.yield();
+      }
+    }
+  }
+
+  public void unlockExclusive() {
+    if (exclusive.getHoldCount() == 1)
+      structural = false;
+    exclusive.unlock();
+  }
+
+  private int stripe() {
+    long id = Thread.currentThread().getId();
+    return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+  }
+}
+
+
+// Main File System class implementing the trie structure
+// Safe to share between threads: getNode, getFileContent and display never lock, while
+// createPath, deletePath and setFileContent only lock the directory (or file) they mutate
+public class FileSystem {
+  // Default number of resolved paths kept by the lookup cache
+  public static final int DEFAULT_LOOKUP_CACHE_CAPACITY = 4096;
+
+  // Root directory
+  private FileSystemNode root;
+  // Resolved path -> node cache in front of the trie (null when disabled)
+  private final PathLookupCache lookupCache;
+  // Durable backing store (null for a purely in-memory file system)
+  private FileSystemStore store;
+  // Build streamed content in direct (off-heap) blocks instead of heap arrays
+  private final boolean offHeapContent;
+  // Per-node operations share it; movePath, copyPath, snapshots and checkpoints take it
+  // exclusively
+  private final StructureLock structureLock = new StructureLock();
+  // Secondary indexes over files (null until enableIndex is called)
+  private volatile FileIndex index;
+  // Told about every completed operation; copied on change, so reading it never locks
+  private volatile OperationListener[] listeners = new OperationListener[0];
+  // Built-in listener (null until enableMetrics is called)
+  private FileSystemMetrics metrics;
+  // Shared store for identical content blocks (null until enableDeduplication is called)
+  private volatile ContentStore contentStore;
+  // Delivers changes to watchers (null until the first watch)
+  private volatile ChangeNotifier notifier;
+
+  // Constructor to initialize the file system with a root directory
+  public FileSystem() {
+    this(DEFAULT_LOOKUP_CACHE_CAPACITY);
+  }
+
+  // Constructor with an explicit lookup cache size; 0 disables the cache
+  public FileSystem(int lookupCacheCapacity) {
+    this(lookupCacheCapacity, false);
+  }
+
+  // Constructor choosing the lookup cache size and where streamed content blocks live
+  public FileSystem(int lookupCacheCapacity, boolean offHeapContent) {
+    this.root = new Directory("/");
+    this.lookupCache = lookupCacheCapacity > 0 ? new PathLookupCache(lookupCacheCapacity) : null;
+    this.offHeapContent = offHeapContent;
+  }
+
+  // Open a durable file system kept in a directory: load the last checkpoint and replay the
+  // write-ahead log over it; every later change is logged before it returns
+  public static FileSystem open(Path directory) throws IOException {
+    return open(directory, false);
+  }
+
+  // Same, optionally forcing every change to disk before it returns
+  public static FileSystem open(Path directory, boolean syncEveryWrite) throws IOException {
+    FileSystemStore store = FileSystemStore.open(directory, syncEveryWrite);
+    FileSystem fs = new FileSystem();
+    Directory checkpointed = store.loadCheckpoint();
+    if (checkpointed != null)
+      fs.root = checkpointed;
+    // The store is attached only after replay, so replayed operations aren't logged again
+    store.replay(new FileSystemStore.Replay() {
+      @Override
+      public void create(String path, boolean isFile) {
+        fs.createNode(path, isFile);
+      }
+
+      @Override
+      public void delete(String path) {
+        fs.deletePath(path);
+      }
+
+      @Override
+      public void write(String path, FileSystemStore.Extent extent) {
+        FileSystemNode node = fs.getNode(path);
+        if (node != null && node.isFile())
+          ((File) node).setData(extent == null ? null : FileContent.stored(extent));
+      }
+
+      @Override
+      public void append(String path, FileSystemStore.Extent extent) {
+        FileSystemNode node = fs.getNode(path);
+        if (node != null && node.isFile()) {
+          File file = (File) node;
+          FileContent current = file.getData() == null ? FileContent.EMPTY : file.getData();
+          file.setData(current.append(FileContent.stored(extent)));
+        }
+      }
+
+      @Override
+      public void move(String source, String target) {
+        fs.movePath(source, target);
+      }
+
+      @Override
+      public void copy(String source, String target) {
+        fs.copyPath(source, target);
+      }
+    });
+    fs.store = store;
+    return fs;
+  }
+
+  // Write a checkpoint and truncate the log, so the next open replays less
+  public void checkpoint() throws IOException {
+    if (store == null)
+      return;
+    structureLock.lockExclusive();
+    try {
+      store.checkpoint(root);
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Point-in-time, read-only view of the whole tree (see FileSystemSnapshot)
+  // Taking it is O(1): writers are held off only while the root is copied, and pay later by
+  // copying a directory's direct children the first time they change something below it
+  public FileSystemSnapshot snapshot() {
+    structureLock.lockExclusive();
+    try {
+      return new FileSystemSnapshot(root.copy("/"));
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Checkpoint and release the store, and stop notifying watchers
+  public void close() throws IOException {
+    synchronized (this) {
+      if (notifier != null) {
+        notifier.close();
+        notifier = null;
+      }
+    }
+    if (store != null) {
+      checkpoint();
+      store.close();
+      store = null;
+    }
+  }
+
+  // Link a node of a known type under an existing parent (log replay only)
+  private void createNode(String path, boolean isFile) {
+    PathCursor cursor = new PathCursor(path);
+    FileSystemNode parent = parentForWrite(cursor);
+    if (parent == null || parent.getChild(cursor) != null)
+      return;
+    String name = cursor.component();
+    FileSystemNode node = isFile ? new File(name) : new Directory(name);
+    parent.addChild(name, node);
+    if (index != null && isFile)
+      index.update(canonical(path), (File) node);
+    onChildAdded();
+  }
+
+  // Build secondary indexes (extension, modified time, size) over the current files and keep
+  // them up to date from then on; returns the index to query
+  public FileIndex enableIndex() {
+    structureLock.lockExclusive();
+    try {
+      if (index == null) {
+        FileIndex built = new FileIndex();
+        built.addTree("/", root);
+        index = built;
+      }
+      return index;
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Secondary indexes, or null if enableIndex wasn't called
+  public FileIndex getIndex() {
+    return index;
+  }
+
+  // "//document/cwa_lld/" -> "/document/cwa_lld", the form paths are indexed under
+  private static String canonical(String path) {
+    PathCursor cursor = new PathCursor(path);
+    StringBuilder canonical = new StringBuilder(path.length());
+    while (cursor.next())
+      canonical.append('/').append(cursor);
+    return canonical.length() == 0 ? "/" : canonical.toString();
+  }
+
+  // Report every completed operation to a listener (see OperationListener)
+  public synchronized void addOperationListener(OperationListener listener) {
+    OperationListener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+    grown[listeners.length] = listener;
+    listeners = grown;
+  }
+
+  public synchronized void removeOperationListener(OperationListener listener) {
+    List<OperationListener> remaining = new ArrayList<>(Arrays.asList(listeners));
+    remaining.remove(listener);
+    listeners = remaining.toArray(new OperationListener[0]);
+  }
+
+  // Start counting operations and recording their latencies; returns the (single) collector
+  public synchronized FileSystemMetrics enableMetrics() {
+    if (metrics == null) {
+      metrics = new FileSystemMetrics(this);
+      addOperationListener(metrics);
+    }
+    return metrics;
+  }
+
+  // Metrics collector, or null if enableMetrics wasn't called
+  public synchronized FileSystemMetrics getMetrics() {
+    return metrics;
+  }
+
+  // Keep identical content blocks once from now on: every write is hashed into a ContentStore
+  // (in-memory content only; a durable file system keeps content in its data file)
+  public synchronized ContentStore enableDeduplication() {
+    if (contentStore == null)
+      contentStore = new ContentStore();
+    return contentStore;
+  }
+
+  // Content store, or null if enableDeduplication wasn't called
+  public ContentStore getContentStore() {
+    return contentStore;
+  }
+
+  // Deflate the content of files that weren't modified for idleMillis and hold at least
+  // minBytes; reads inflate it transparently (see ContentBlock). Returns the bytes saved
+  // Blocks shared by several files are compressed once, for all of them
+  public long compressColdContent(long idleMillis, long minBytes) {
+    long coldBefore = System.currentTimeMillis() - idleMillis;
+    long saved = 0;
+    ArrayDeque<FileSystemNode> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      FileSystemNode node = pending.pop();
+      if (!node.isFile()) {
+        for (FileSystemNode child : node.getChildren())
+          pending.push(child);
+        continue;
+      }
+      FileContent data = ((File) node).getData();
+      if (data != null && data.size() >= minBytes && node.getModifiedAtMillis() <= coldBefore)
+        saved += data.compress();
+    }
+    return saved;
+  }
+
+  // Be told about creates, deletes and content changes at or below a path (see ChangeNotifier)
+  // Events arrive in batches on another thread; close the returned watch to stop them
+  public synchronized ChangeNotifier.Watch watch(String pathPrefix, WatchListener listener) {
+    if (!isValidFilePath(pathPrefix))
+      throw new IllegalArgumentException("Not an absolute path: " + pathPrefix);
+    if (notifier == null)
+      notifier = new ChangeNotifier();
+    return notifier.watch(canonical(pathPrefix), listener);
+  }
+
+  // Publish a change if anyone watches; called inside the lock that orders the change, so
+  // events for a path come out in the order the changes were made
+  private void changed(WatchEvent.Kind kind, String path) {
+    ChangeNotifier current = notifier;
+    if (current != null && current.hasWatches())
+      current.publish(kind, canonical(path));
+  }
+
+  // Node counts, content bytes and depth distribution, from a walk of the current tree
+  public TreeStatistics getTreeStatistics() {
+    return TreeStatistics.of(root);
+  }
+
+  // Same for the subtree at a path (null if there is nothing there)
+  public TreeStatistics getTreeStatistics(String path) {
+    FileSystemNode node = isValidFilePath(path) ? resolve(path) : null;
+    return node == null ? null : TreeStatistics.of(node);
+  }
+
+  // Start time of an operation, or 0 when nobody listens: then timing costs one volatile read
+  private long operationStarted() {
+    return listeners.length == 0 ? 0 : System.nanoTime();
+  }
+
+  private void operationEnded(OperationListener.Operation operation, String path, long started,
+      boolean succeeded) {
+    if (started == 0)
+      return;
+    long nanos = System.nanoTime() - started;
+    for (OperationListener listener : listeners)
+      listener.operationCompleted(operation, path, nanos, succeeded);
+  }
+
+  // Lookup cache, to read its hit/miss/eviction counters (null when disabled)
+  public PathLookupCache getLookupCache() {
+    return lookupCache;
+  }
+
+  // A child was linked somewhere: paths cached as missing may exist now
+  private void onChildAdded() {
+    if (lookupCache != null)
+      lookupCache.invalidateMissing();
+  }
+  // path = "/document/cwa_lld/design_file_system"
+  // Checking if path is not null, not empty, and starts with
+  // Validate file path to be non-empty and properly formatted
+  public boolean isValidFilePath(String path) {
+    // Returns true because path meets all criteria
+    return path != null && !path.isEmpty() && path.startsWith("/");
+  }
+
+  // Create a new path
+  public boolean createPath(String path) {
+    long started = operationStarted();
+    boolean created = create(path);
+    operationEnded(OperationListener.Operation.CREATE, path, started, created);
+    return created;
+  }
+
+  // path = "/document/cwa_lld/design_file_system"
+  private boolean create(String path) {
+    // Validate path
+    // path is valid, so continue
+    if (!isValidFilePath(path))
+      return false;
+    // Retry from the root whenever a directory on the way was deleted under us
+    int shared = structureLock.enterShared();
+    try {
+      Boolean created;
+      do {
+        created = tryCreatePath(path);
+      } while (created == null);
+      return created;
+    } finally {
+      structureLock.exitShared(shared);
+    }
+  }
+
+  // One attempt at createPath; returns null if a concurrent delete forces a retry
+  private Boolean tryCreatePath(String path) {
+    // Walk the components in place instead of splitting
+    // components: "document", "cwa_lld", "design_file_system"
+    PathCursor cursor = new PathCursor(path);
+    // "/" (or "///") has no last component to create
+    if (!cursor.next())
+      return false;
+    // Start from root
+    // current = root directory "/"
+    FileSystemNode current = root;
+    // Traverse to the parent directory
+    // We need to process: "document" and "cwa_lld" (stopping before the last component)
+    while (!cursor.isLast()) {
+      // First iteration: component = "document"
+      // Second iteration: component = "cwa_lld"
+      FileSystemNode child = directoryForCreate(current, cursor);
+      if (child == null)
+        return null;
+      if (child.isFile()) {
+        // If "document" or "cwa_lld" is a file, we cannot navigate through it
+        // Return false in that case
+        return false;
+      }
+      // Move to the next level
+      // First iteration: current = "document" directory
+      // Second iteration: current = "cwa_lld" directory
+      current = child;
+      cursor.next();
+    }
+    // The cursor is on the last component (file or directory name)
+    // lastComponent = "design_file_system"
+    // Check if the component already exists
+    // If "design_file_system" already exists under "cwa_lld", return false
+    if (!unshare(current))
+      return null;
+    if (current.getChild(cursor) != null) {
+      return false;
+    }
+    // Create new node based on whether it's a file (has extension) or directory
+    // "design_file_system" has no dot, so create as directory
+    String lastComponent = cursor.component();
+    FileSystemNode newNode;
+    if (cursor.contains('.')) {
+      newNode = new File(lastComponent);
+    } else {
+      newNode = new Directory(lastComponent);
+    }
+    // Add the new node to the parent
+    // Add "design_file_system" directory to "cwa_lld"
+    synchronized (current) {
+      if (current.isRemoved())
+        return null;
+      if (current.getChild(cursor) != null)
+        return false;
+      current.addChild(lastComponent, newNode);
+      if (store != null)
+        store.logCreate(cursor.prefix(), newNode.isFile());
+      FileIndex files = index;
+      if (files != null && newNode.isFile())
+        files.update(canonical(path), (File) newNode);
+      changed(WatchEvent.Kind.CREATED, path);
+    }
+    onChildAdded();
+    return true;
+  }
+
+  // Child of current named by the cursor's component, created as a directory if missing
+  // Returns null if current was deleted under us and the walk must restart from the root
+  private FileSystemNode directoryForCreate(FileSystemNode current, PathCursor cursor) {
+    // A directory shared with a copy gets private children before we go below it
+    if (!unshare(current))
+      return null;
+    FileSystemNode child = current.getChild(cursor);
+    if (child == null) {
+      // If "document" doesn't exist, create it
+      // If "cwa_lld" doesn't exist, create it
+      // Only this directory is locked, and only while it is being mutated
+      synchronized (current) {
+        if (current.isRemoved())
+          return null;
+        child = current.getChild(cursor);
+        if (child == null) {
+          String component = cursor.component();
+          child = new Directory(component);
+          current.addChild(component, child);
+          if (store != null)
+            store.logCreate(cursor.prefix(), false);
+          changed(WatchEvent.Kind.CREATED, cursor.prefix());
+          onChildAdded();
+        }
+      }
+    }
+    return child;
+  }
+
+  // Create several children of one directory: the parent is walked (and created) once and all
+  // the children are linked under one lock; created[i] tells whether names.get(i) was new
+  // createChildren("/document/cwa_lld", ["a.md", "b"]) does what
+  // createPath("/document/cwa_lld/a.md") and createPath("/document/cwa_lld/b") would
+  // Listeners hear about the batch as one CREATE of the parent, succeeded if any child was new
+  public boolean[] createChildren(String parentPath, List<String> names) {
+    long started = operationStarted();
+    boolean[] created = createAll(parentPath, names);
+    boolean any = false;
+    for (boolean one : created)
+      any |= one;
+    operationEnded(OperationListener.Operation.CREATE, parentPath, started, any);
+    return created;
+  }
+
+  private boolean[] createAll(String parentPath, List<String> names) {
+    boolean[] created = new boolean[names.size()];
+    if (!isValidFilePath(parentPath))
+      return created;
+    int shared = structureLock.enterShared();
+    try {
+      // A retry starts before anything was linked, so no result from the failed attempt survives
+      while (!tryCreateChildren(parentPath, names, created))
+        Arrays.fill(created, false);
+      return created;
+    } finally {
+      structureLock.exitShared(shared);
+    }
+  }
+
+  // One attempt at createChildren; returns false if a concurrent delete forces a retry
+  private boolean tryCreateChildren(String parentPath, List<String> names, boolean[] created) {
+    PathCursor cursor = new PathCursor(parentPath);
+    FileSystemNode current = root;
+    while (cursor.next()) {
+      current = directoryForCreate(current, cursor);
+      if (current == null)
+        return false;
+      if (current.isFile())
+        return true;
+    }
+    if (!unshare(current))
+      return false;
+    String parent = canonical(parentPath);
+    String prefix = parent.length() == 1 ? parent : parent + "/";
+    boolean added = false;
+    synchronized (current) {
+      if (current.isRemoved())
+        return false;
+      FileIndex files = index;
+      for (int i = 0; i < created.length; i++) {
+        String name = names.get(i);
+        if (name.isEmpty() || name.indexOf('/') >= 0 || current.getChild(name) != null)
+          continue;
+        FileSystemNode newNode = name.indexOf('.') >= 0 ? new File(name) : new Directory(name);
+        current.addChild(name, newNode);
+        if (store != null)
+          store.logCreate(prefix + name, newNode.isFile());
+        changed(WatchEvent.Kind.CREATED, prefix + name);
+        if (files != null && newNode.isFile())
+          files.update(prefix + name, (File) newNode);
+        created[i] = added = true;
+      }
+    }
+    if (added)
+      onChildAdded();
+    return true;
+  }
+
+  // Helper method to get node at path, answered from the lookup cache when possible
+  private FileSystemNode getNode(String path) {
+    // Check if path is valid
+    // Path is valid, so continue
+    if (!isValidFilePath(path))
+      return null;
+    if (lookupCache == null)
+      return resolve(path);
+    PathLookupCache.Entry cached = lookupCache.get(path);
+    if (cached != null)
+      return cached.getNode();
+    // Read the generations before walking, so a create or delete that races with us
+    // invalidates our result
+    long missing = lookupCache.missingGeneration();
+    long removed = lookupCache.removedGeneration();
+    FileSystemNode node = resolve(path);
+    lookupCache.put(path, node, missing, removed);
+    return node;
+  }
+
+  // Walk the trie from the root
+  // path = "/document/cwa_lld/design_file_system"
+  // Looking up an existing path allocates nothing but the cursor
+  private FileSystemNode resolve(String path) {
+    // Start from root
+    // current = root directory "/"
+    // For "/" the loop below doesn't run and root is returned
+    FileSystemNode current = root;
+    PathCursor cursor = new PathCursor(path);
+    // Traverse through the path
+    // We need to process: "document", "cwa_lld", and "design_file_system"
+    while (cursor.next()) {
+      // First iteration: component = "document"
+      // Second iteration: component = "cwa_lld"
+      // Third iteration: component = "design_file_system
+      current = current.getChild(cursor);
+      if (current == null) {
+        // If any component doesn't exist at its level, return null
+        return null;
+      }
+    }
+    // Return the node found at the path
+    // Returns the "design_file_system" directory node
+    return current;
+  }
+
+  // Delete path
+  public boolean deletePath(String path) {
+    return deleteRecursive(path) > 0;
+  }
+
+  // Delete a path with everything below it; returns the number of nodes freed (0 if nothing
+  // was deleted). Nodes still shared with a copy (see copyPath) stay alive and aren't counted
+  public int deleteRecursive(String path) {
+    long started = operationStarted();
+    int freed = delete(path);
+    operationEnded(OperationListener.Operation.DELETE, path, started, freed > 0);
+    return freed;
+  }
+
+  private int delete(String path) {
+    // path = "/document/cwa_lld/design_file_system"
+    // Check if path is valid
+    // Path is valid, so continue
+    if (!isValidFilePath(path))
+      return 0;
+    int shared = structureLock.enterShared();
+    try {
+      Integer freed;
+      do {
+        freed = tryDeletePath(path);
+      } while (freed == null);
+      return freed;
+    } finally {
+      structureLock.exitShared(shared);
+    }
+  }
+
+  // One attempt at deleteRecursive; returns null if the parent was deleted concurrently
+  private Integer tryDeletePath(String path) {
+    // Can't delete root
+    // "/" has no components, so there is nothing to delete
+    PathCursor cursor = new PathCursor(path);
+    if (!cursor.next())
+      return 0;
+    // Resolve parent and leaf in a single pass
+    // parent = "cwa_lld" directory node once the cursor is on "design_file_system"
+    FileSystemNode parent = root;
+    while (!cursor.isLast()) {
+      if (!unshare(parent))
+        return null;
+      parent = parent.getChild(cursor);
+      // If parent doesn't exist or is a file, can't delete
+      if (parent == null || parent.isFile())
+        return 0;
+      cursor.next();
+    }
+    // Check if the component exists and remove it
+    // Remove "design_file_system" from "cwa_lld"
+    synchronized (parent) {
+      if (!unshare(parent))
+        return null;
+      FileSystemNode child = parent.getChild(cursor);
+      if (child == null)
+        return 0;
+      // Mark the whole subtree before unlinking it, so a writer that is about to add
+      // below it either finishes first (and its node gets marked too) or sees the mark and retries
+      List<FileSystemNode> stillShared = new ArrayList<>();
+      int freed = markSubtreeRemoved(child, stillShared);
+      if (store != null)
+        store.logDelete(path);
+      FileIndex files = index;
+      if (files != null)
+        files.removeTree(canonical(path));
+      changed(WatchEvent.Kind.DELETED, path);
+      parent.removeChild(cursor);
+      // The nodes a copy still shares are not marked, so cached lookups of them would still
+      // look fresh; only once they are unlinked, or a lookup could cache them again
+      if (lookupCache != null && !stillShared.isEmpty())
+        lookupCache.invalidateRemoved();
+      return freed;
+    }
+  }
+
+  // Mark every node of a subtree as removed, top-down, one node lock at a time, and count them
+  // Children a directory still shares with a copy live on there, so marking stops at them;
+  // writers can only reach them through that directory, which is marked. Such directories
+  // are added to stillShared
+  // Iterative so that very deep trees don't overflow the stack
+  private int markSubtreeRemoved(FileSystemNode top, List<FileSystemNode> stillShared) {
+    int marked = 0;
+    Deque<FileSystemNode> stack = new ArrayDeque<>();
+    stack.push(top);
+    while (!stack.isEmpty()) {
+      FileSystemNode node = stack.pop();
+      boolean shared;
+      synchronized (node) {
+        node.markRemoved();
+        shared = !node.isFile() && ((Directory) node).isChildrenShared();
+      }
+      marked++;
+      if (shared) {
+        stillShared.add(node);
+        continue;
+      }
+      // No child can be added once the node is marked, so this view is complete
+      for (FileSystemNode child : node.getChildren()) {
+        stack.push(child);
+      }
+    }
+    return marked;
+  }
+
+  // Give a directory private children before changing something at or below it
+  // Returns false if it was deleted meanwhile (the caller retries from the root)
+  private boolean unshare(FileSystemNode node) {
+    return node.isFile() || ((Directory) node).unshareChildren();
+  }
+
+  // Walk to a node for writing, unsharing every directory on the way; null if it doesn't exist
+  private FileSystemNode resolveForWrite(String path) {
+    retry:
+    while (true) {
+      FileSystemNode current = root;
+      PathCursor cursor = new PathCursor(path);
+      while (cursor.next()) {
+        if (!unshare(current))
+          continue retry;
+        current = current.getChild(cursor);
+        if (current == null)
+          return null;
+      }
+      return current;
+    }
+  }
+
+  // Walk to the parent directory of a path, unsharing it and every directory above it, and
+  // leave the cursor on the last component; null for "/" or if the parent doesn't exist
+  // Only used while no concurrent delete can run (structure lock held exclusively, or replay)
+  private FileSystemNode parentForWrite(PathCursor cursor) {
+    if (!cursor.next())
+      return null;
+    FileSystemNode parent = root;
+    while (!cursor.isLast()) {
+      unshare(parent);
+      parent = parent.getChild(cursor);
+      if (parent == null || parent.isFile())
+        return null;
+      cursor.next();
+    }
+    unshare(parent);
+    return parent;
+  }
+
+  // Move (or rename) a file or directory with its whole subtree
+  // "/document/cwa_lld" -> "/archive/lld": only the two parent directories change, so the cost
+  // is the depth of the two paths, whatever the size of the subtree
+  // The target's parent must exist, the target must not, and a directory can't move below itself
+  public boolean movePath(String source, String target) {
+    long started = operationStarted();
+    boolean moved = move(source, target);
+    operationEnded(OperationListener.Operation.MOVE, source, started, moved);
+    return moved;
+  }
+
+  private boolean move(String source, String target) {
+    if (!isValidFilePath(source) || !isValidFilePath(target))
+      return false;
+    structureLock.lockExclusive();
+    try {
+      PathCursor from = new PathCursor(source);
+      FileSystemNode fromParent = parentForWrite(from);
+      if (fromParent == null)
+        return false;
+      FileSystemNode node = fromParent.getChild(from);
+      if (node == null)
+        return false;
+      PathCursor to = new PathCursor(target);
+      FileSystemNode toParent = parentForWrite(to);
+      if (toParent == null || toParent.getChild(to) != null || isOnPath(node, target))
+        return false;
+      // Unlink before renaming: small directories keep children sorted by name
+      String name = to.component();
+      fromParent.removeChild(from);
+      node.rename(name);
+      toParent.addChild(name, node);
+      if (store != null)
+        store.logMove(source, target);
+      changed(WatchEvent.Kind.DELETED, source);
+      changed(WatchEvent.Kind.CREATED, target);
+      if (index != null)
+        index.moveTree(canonical(source), canonical(target));
+      // Every cached path below the source is wrong now
+      if (lookupCache != null)
+        lookupCache.clear();
+      return true;
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Detached copy of the subtree at a path, for importSubtree into another file system
+  // O(1): the copy shares every node with this tree, copy-on-write like copyPath
+  // Returns null if there is nothing at the path (or it is the root)
+  public FileSystemNode exportSubtree(String path) {
+    if (!isValidFilePath(path))
+      return null;
+    structureLock.lockExclusive();
+    try {
+      FileSystemNode node = resolve(path);
+      return node == null || node == root ? null : node.copy(node.getName());
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Link a subtree exported from another file system at a path whose parent exists here
+  // In-memory file systems only: the write-ahead log has no record for nodes that come
+  // from elsewhere
+  public boolean importSubtree(String path, FileSystemNode subtree) {
+    if (store != null)
+      throw new UnsupportedOperationException("importSubtree on a durable file system");
+    if (!isValidFilePath(path) || subtree == null)
+      return false;
+    structureLock.lockExclusive();
+    try {
+      PathCursor to = new PathCursor(path);
+      FileSystemNode parent = parentForWrite(to);
+      if (parent == null || parent.getChild(to) != null)
+        return false;
+      FileSystemNode copy = subtree.copy(to.component());
+      parent.addChild(copy.getName(), copy);
+      if (index != null)
+        index.addTree(canonical(path), copy);
+      changed(WatchEvent.Kind.CREATED, path);
+      onChildAdded();
+      return true;
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Copy a file or directory with its whole subtree
+  // The copy shares the source's children copy-on-write, so it is O(1) until either side changes,
+  // and then costs one level of copies per directory on the changed path
+  // The target's parent must exist and the target must not
+  public boolean copyPath(String source, String target) {
+    long started = operationStarted();
+    boolean copied = copy(source, target);
+    operationEnded(OperationListener.Operation.COPY, source, started, copied);
+    return copied;
+  }
+
+  private boolean copy(String source, String target) {
+    if (!isValidFilePath(source) || !isValidFilePath(target))
+      return false;
+    structureLock.lockExclusive();
+    try {
+      FileSystemNode node = resolve(source);
+      if (node == null)
+        return false;
+      PathCursor to = new PathCursor(target);
+      if (!to.next())
+        return false;
+      while (!to.isLast())
+        to.next();
+      // Copy before walking to the target: if the target is inside the source, the walk then
+      // unshares the source, and the copy doesn't see itself
+      FileSystemNode copy = node.copy(to.component());
+      FileSystemNode toParent = parentForWrite(new PathCursor(target));
+      if (toParent == null || toParent.getChild(to) != null)
+        return false;
+      toParent.addChild(copy.getName(), copy);
+      if (store != null)
+        store.logCopy(source, target);
+      changed(WatchEvent.Kind.CREATED, target);
+      // The tree copy is O(1), but each copied file still needs its own index entries
+      if (index != null)
+        index.addTree(canonical(target), copy);
+      onChildAdded();
+      return true;
+    } finally {
+      structureLock.unlockExclusive();
+    }
+  }
+
+  // Check if a node is one of the directories on a path (the path's last component excluded)
+  private boolean isOnPath(FileSystemNode node, String path) {
+    FileSystemNode current = root;
+    PathCursor cursor = new PathCursor(path);
+    while (cursor.next() && current != null) {
+      if (current == node)
+        return true;
+      current = current.getChild(cursor);
+    }
+    return false;
+  }
+
+  // Find every path matching a glob, e.g. "/document/**/*.md" or "/src/*/test?.java"
+  // Results are produced lazily while the trie is walked; literal components are looked up
+  // directly, so "/document/cwa_lld/*" only reads the cwa_lld directory
+  public Stream<String> find(String glob) {
+    return find(glob, false);
+  }
+
+  // Same, optionally as a parallel stream that splits big subtrees across the ForkJoinPool
+  public Stream<String> find(String glob, boolean parallel) {
+    if (!isValidFilePath(glob))
+      return Stream.empty();
+    return StreamSupport.stream(new GlobSpliterator(PathGlob.compile(glob), root), parallel);
+  }
+
+  // Display the entire file system structure
+  public void display() {
+    try {
+      display(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)),
+          Integer.MAX_VALUE, 0, Long.MAX_VALUE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Display the structure to any Appendable, down to maxDepth, skipping offset lines and
+  // printing at most limit lines; returns the number of lines printed
+  public long display(Appendable out, int maxDepth, long offset, long limit) throws IOException {
+    return new TreePrinter(TreePrinter.Format.TEXT, maxDepth, offset, limit).print(root, "/", out);
+  }
+
+  // Export the structure as one JSON object per line (path, type, size or child count, mtime)
+  public long exportJsonLines(Appendable out, int maxDepth) throws IOException {
+    return new TreePrinter(TreePrinter.Format.JSON_LINES, maxDepth, 0, Long.MAX_VALUE)
+        .print(root, "/", out);
+  }
+
+  // Set content for file
+  public boolean setFileContent(String path, String content) {
+    return commitContent(path, content == null ? null : FileContent.of(content), false);
+  }
+
+  // Replace (or append to) a file's content with a new version
+  // Durable file systems copy the bytes into the mapped data file first, outside any lock
+  private boolean commitContent(String path, FileContent written, boolean append) {
+    long started = operationStarted();
+    boolean committed = false;
+    int shared = structureLock.enterShared();
+    try {
+      committed = tryCommitContent(path, written, append);
+      return committed;
+    } finally {
+      structureLock.exitShared(shared);
+      operationEnded(OperationListener.Operation.WRITE, path, started, committed);
+    }
+  }
+
+  private boolean tryCommitContent(String path, FileContent written, boolean append) {
+    FileSystemStore.Extent extent = null;
+    boolean persisted = false;
+    while (true) {
+      // Walk for writing: a file shared with a copy gets a private copy first
+      FileSystemNode node = resolveForWrite(path);
+      if (node == null || !node.isFile())
+        return false;
+      File file = (File) node;
+      if (store != null && !persisted && written != null) {
+        extent = storeContent(written);
+        written = FileContent.stored(extent);
+        persisted = true;
+      }
+      ContentStore blocks = contentStore;
+      if (blocks != null && written != null)
+        written = written.deduplicate(blocks);
+      synchronized (file) {
+        // The file was deleted after we found it; the path may have been recreated, so look again
+        if (file.isRemoved())
+          continue;
+        if (store != null) {
+          if (append)
+            store.logAppend(path, extent);
+          else
+            store.logWrite(path, extent);
+        }
+        if (append) {
+          FileContent current = file.getData();
+          FileContent appended = current == null ? written : current.append(written);
+          // Appending may re-pack the old tail block together with the new bytes
+          file.setData(blocks == null ? appended : appended.deduplicate(blocks));
+        } else {
+          file.setData(written);
+        }
+        FileIndex files = index;
+        if (files != null)
+          files.update(canonical(path), file);
+        changed(WatchEvent.Kind.MODIFIED, path);
+        return true;
+      }
+    }
+  }
+
+  private FileSystemStore.Extent storeContent(FileContent content) {
+    try {
+      return store.appendContent(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to store content", e);
+    }
+  }
+
+  // Current content version of a file, or null if the path isn't a file
+  private FileContent contentOf(String path) {
+    FileSystemNode node = getNode(path);
+    if (node == null || !node.isFile())
+      return null;
+    FileContent content = ((File) node).getData();
+    return content == null ? FileContent.EMPTY : content;
+  }
+
+  // Stream the content of a file (the version current when opened); null if not a file
+  public InputStream openRead(String path) {
+    long started = operationStarted();
+    FileContent content = contentOf(path);
+    operationEnded(OperationListener.Operation.READ, path, started, content != null);
+    return content == null ? null : content.newInputStream();
+  }
+
+  // Read-only seekable channel over the content of a file; null if not a file
+  public SeekableByteChannel openChannel(String path) {
+    long started = operationStarted();
+    FileContent content = contentOf(path);
+    operationEnded(OperationListener.Operation.READ, path, started, content != null);
+    return content == null ? null : content.newChannel();
+  }
+
+  // Stream that replaces the file's content when closed; null if not a file
+  public OutputStream openWrite(String path) {
+    return contentOf(path) == null ? null : new ContentOutputStream(path, false);
+  }
+
+  // Stream that appends to the file when closed; null if not a file
+  public OutputStream openAppend(String path) {
+    return contentOf(path) == null ? null : new ContentOutputStream(path, true);
+  }
+
+  // Append bytes to a file
+  public boolean append(String path, byte[] bytes) {
+    return commitContent(path, FileContent.of(bytes), true);
+  }
+
+  // Read bytes at an offset; returns bytes read, or -1 past the end or if the path isn't a file
+  public int read(String path, long offset, ByteBuffer dst) {
+    long started = operationStarted();
+    FileContent content = contentOf(path);
+    int read = content == null ? -1 : content.read(offset, dst);
+    operationEnded(OperationListener.Operation.READ, path, started, content != null);
+    return read;
+  }
+
+  // Send a range of a file to a channel straight from its blocks; returns bytes transferred
+  public long transferTo(String path, long position, long count, WritableByteChannel target)
+      throws IOException {
+    long started = operationStarted();
+    FileContent content = contentOf(path);
+    try {
+      if (content == null)
+        throw new FileNotFoundException(path);
+      return content.transferTo(position, count, target);
+    } finally {
+      operationEnded(OperationListener.Operation.READ, path, started, content != null);
+    }
+  }
+
+  // Buffers written bytes into blocks and commits them as one new version on close
+  private class ContentOutputStream extends OutputStream {
+    private final String path;
+    private final boolean append;
+    private final FileContent.Writer writer;
+    private boolean closed;
+
+    ContentOutputStream(String path, boolean append) {
+      this.path = path;
+      this.append = append;
+      this.writer = new FileContent.Writer(offHeapContent);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      ensureOpen();
+      writer.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      ensureOpen();
+      writer.write(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+      closed = true;
+      if (!commitContent(path, writer.toContent(), append))
+        throw new FileNotFoundException(path + " was deleted while it was being written");
+    }
+
+    private void ensureOpen() throws IOException {
+      if (closed)
+        throw new IOException("Stream closed");
+    }
+  }
+
+  // Get content from file (decodes the whole content; use openRead for large files)
+  public String getFileContent(String path) {
+    long started = operationStarted();
+    FileSystemNode node = getNode(path);
+    boolean isFile = node != null && node.isFile();
+    String content = isFile ? ((File) node).getContent() : null;
+    operationEnded(OperationListener.Operation.READ, path, started, isFile);
+    return content;
+  }
+
+  // Contents of several files in one directory, resolving the directory once
+  // contents[i] is what getFileContent(parentPath + "/" + names.get(i)) would return
+  // Listeners hear about the batch as one READ of the parent
+  public String[] getFileContents(String parentPath, List<String> names) {
+    long started = operationStarted();
+    String[] contents = new String[names.size()];
+    FileSystemNode parent = getNode(parentPath);
+    boolean found = parent != null && !parent.isFile();
+    if (found)
+      readAll((Directory) parent, names, contents);
+    operationEnded(OperationListener.Operation.READ, parentPath, started, found);
+    return contents;
+  }
+
+  private static void readAll(Directory parent, List<String> names, String[] contents) {
+    for (int i = 0; i < contents.length; i++) {
+      FileSystemNode node = parent.getChild(names.get(i));
+      if (node != null && node.isFile())
+        contents[i] = ((File) node).getContent();
+    }
+  }
+}
+
+
+// Point-in-time, read-only view of a FileSystem, from FileSystem.snapshot()
+// The snapshot holds a copy of the root that shares every node with the live tree. Nodes are
+// never changed in place once shared: a writer first gives the directories on its path private
+// copies of their children (Directory.unshareChildren), so the snapshot keeps seeing the old
+// nodes while the live tree moves on. Readers of either side never lock
+// Versions are plain objects: what only this snapshot still references is garbage collected
+// once the snapshot is closed or unreachable
+//   FileSystemSnapshot before = fs.snapshot();
+//   fs.setFileContent("/notes.txt", "new");
+//   before.getFileContent("/notes.txt")   -> the content at snapshot time
+public class FileSystemSnapshot implements AutoCloseable {
+  private final long takenAt;
+  // Null once closed, so the old versions can be collected even if the snapshot object lingers
+  private volatile FileSystemNode root;
+
+  FileSystemSnapshot(FileSystemNode root) {
+    this.root = root;
+    this.takenAt = System.currentTimeMillis();
+  }
+
+  // When the snapshot was taken (epoch millis)
+  public long getTakenAt() {
+    return takenAt;
+  }
+
+  public boolean exists(String path) {
+    return resolve(path) != null;
+  }
+
+  // Content of a file as of the snapshot; null if it wasn't a file then
+  public String getFileContent(String path) {
+    FileSystemNode node = resolve(path);
+    return node != null && node.isFile() ? ((File) node).getContent() : null;
+  }
+
+  // Stream the content of a file as of the snapshot; null if it wasn't a file then
+  public InputStream openRead(String path) {
+    FileSystemNode node = resolve(path);
+    if (node == null || !node.isFile())
+      return null;
+    FileContent data = ((File) node).getData();
+    return (data == null ? FileContent.EMPTY : data).newInputStream();
+  }
+
+  // Names in a directory as of the snapshot; null if it wasn't a directory then
+  public List<String> list(String path) {
+    FileSystemNode node = resolve(path);
+    if (node == null || node.isFile())
+      return null;
+    List<String> names = new ArrayList<>(node.getChildCount());
+    for (FileSystemNode child : node.getChildren())
+      names.add(child.getName());
+    return names;
+  }
+
+  // Same as FileSystem.find, over the snapshot
+  public Stream<String> find(String glob, boolean parallel) {
+    if (glob == null || !glob.startsWith("/"))
+      return Stream.empty();
+    return StreamSupport.stream(new GlobSpliterator(PathGlob.compile(glob), root()), parallel);
+  }
+
+  // Same as FileSystem.display, over the snapshot
+  public long display(Appendable out, int maxDepth, long offset, long limit) throws IOException {
+    return new TreePrinter(TreePrinter.Format.TEXT, maxDepth, offset, limit).print(root(), "/", out);
+  }
+
+  // Same as FileSystem.exportJsonLines, over the snapshot
+  public long exportJsonLines(Appendable out, int maxDepth) throws IOException {
+    return new TreePrinter(TreePrinter.Format.JSON_LINES, maxDepth, 0, Long.MAX_VALUE)
+        .print(root(), "/", out);
+  }
+
+  public TreeStatistics getTreeStatistics() {
+    return TreeStatistics.of(root());
+  }
+
+  // Release the snapshot's versions; every later call throws IllegalStateException
+  @Override
+  public void close() {
+    root = null;
+  }
+
+  private FileSystemNode root() {
+    FileSystemNode current = root;
+    if (current == null)
+      throw new IllegalStateException("snapshot is closed");
+    return current;
+  }
+
+  private FileSystemNode resolve(String path) {
+    FileSystemNode current = root();
+    if (path == null || !path.startsWith("/"))
+      return null;
+    PathCursor cursor = new PathCursor(path);
+    while (current != null && cursor.next())
+      current = current.getChild(cursor);
+    return current;
+  }
+}
+
+
+// Facade over N independent FileSystems ("shards"), each holding whole top-level subtrees
+//   "/projects/a/b.txt" -> top-level "projects" -> shard placement.get("projects"), or by hash
+// Operations on different shards share no locks at all; each shard also has its own
+// single-thread executor for callers that want to hand work off (submit)
+// Moves between shards and rebalancing re-home subtrees with exportSubtree/importSubtree,
+// which share nodes copy-on-write, so a subtree changes shard in O(1) plus a delete
+// Consistency: every top-level name maps to a lock stripe. Writers hold it shared; a
+// cross-shard move or migration holds it exclusively, so no write lands in a subtree that is
+// being re-homed. Reads are optimistic (StampedLock) and retry under the lock only if a
+// re-homing overlapped them
+// Shards are in-memory file systems (see FileSystem.importSubtree)
+public class ShardedFileSystem implements AutoCloseable {
+  private static final int LOCK_STRIPES = 64;
+
+  private final FileSystem[] shards;
+  private final ExecutorService[] executors;
+  // Top-level name -> shard, for names placed by rebalance or a cross-shard move;
+  // other names go by hash
+  private final ConcurrentHashMap<String, Integer> placement = new ConcurrentHashMap<>();
+  private final StampedLock[] stripes = new StampedLock[LOCK_STRIPES];
+
+  public ShardedFileSystem(int shardCount) {
+    if (shardCount < 1)
+      throw new IllegalArgumentException("Need at least one shard: " + shardCount);
+    shards = new FileSystem[shardCount];
+    executors = new ExecutorService[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new FileSystem();
+      int shard = i;
+      executors[i] = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fs-shard-" + shard);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    for (int i = 0; i < LOCK_STRIPES; i++)
+      stripes[i] = new StampedLock();
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  public FileSystem getShard(int index) {
+    return shards[index];
+  }
+
+  // Shard that holds a path's top-level subtree; -1 for "/" or an invalid path
+  public int shardOf(String path) {
+    String top = topLevel(path);
+    return top == null ? -1 : shardOfTop(top);
+  }
+
+  private int shardOfTop(String top) {
+    Integer placed = placement.get(top);
+    if (placed != null)
+      return placed;
+    // Spread the hash so similar names ("w1", "w2", ...) don't land on neighbouring shards only
+    int hash = top.hashCode() * 0x9E3779B9;
+    return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+  }
+
+  // "/projects/a/b.txt" -> "projects"; null for "/" (or an invalid path)
+  private static String topLevel(String path) {
+    if (path == null || !path.startsWith("/"))
+      return null;
+    PathCursor cursor = new PathCursor(path);
+    return cursor.next() ? cursor.component() : null;
+  }
+
+  private StampedLock stripeOf(String top) {
+    return stripes[Math.floorMod(top.hashCode(), LOCK_STRIPES)];
+  }
+
+  public boolean createPath(String path) {
+    return write(path, false, FileSystem::createPath);
+  }
+
+  public boolean deletePath(String path) {
+    return write(path, false, FileSystem::deletePath);
+  }
+
+  public boolean setFileContent(String path, String content) {
+    return write(path, false, (fs, p) -> fs.setFileContent(p, content));
+  }
+
+  public String getFileContent(String path) {
+    return read(path, null, FileSystem::getFileContent);
+  }
+
+  // Run an operation on the shard that holds a path, on that shard's executor
+  // The operation gets the shard and the path; it runs under the same rules as a write
+  public <T> CompletableFuture<T> submit(String path, BiFunction<FileSystem, String, T> operation) {
+    String top = topLevel(path);
+    if (top == null)
+      return CompletableFuture.failedFuture(new IllegalArgumentException("No shard for " + path));
+    return CompletableFuture.supplyAsync(() -> write(path, null, operation),
+        executors[shardOfTop(top)]);
+  }
+
+  // A write holds its top-level's stripe shared, so a re-homing of that subtree waits for it
+  private <T> T write(String path, T none, BiFunction<FileSystem, String, T> operation) {
+    String top = topLevel(path);
+    if (top == null)
+      return none;
+    StampedLock lock = stripeOf(top);
+    long stamp = lock.readLock();
+    try {
+      return operation.apply(shards[shardOfTop(top)], path);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // A read runs without locking and is only repeated (under the lock) if a re-homing overlapped
+  private <T> T read(String path, T none, BiFunction<FileSystem, String, T> operation) {
+    String top = topLevel(path);
+    if (top == null)
+      return none;
+    StampedLock lock = stripeOf(top);
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      T result = operation.apply(shards[shardOfTop(top)], path);
+      if (lock.validate(stamp))
+        return result;
+    }
+    stamp = lock.readLock();
+    try {
+      return operation.apply(shards[shardOfTop(top)], path);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  // Move a path; within a shard this is FileSystem.movePath, across shards the subtree is
+  // exported, imported on the target's shard and deleted from the source's
+  public boolean movePath(String source, String target) {
+    String fromTop = topLevel(source);
+    String toTop = topLevel(target);
+    if (fromTop == null || toTop == null)
+      return false;
+    StampedLock[] locks = lockBoth(fromTop, toTop);
+    try {
+      int from = shardOfTop(fromTop);
+      int to = shardOfTop(toTop);
+      if (from == to)
+        return shards[from].movePath(source, target);
+      FileSystemNode subtree = shards[from].exportSubtree(source);
+      if (subtree == null || !shards[to].importSubtree(target, subtree))
+        return false;
+      shards[from].deletePath(source);
+      return true;
+    } finally {
+      unlock(locks);
+    }
+  }
+
+  // Re-home a top-level subtree on another shard; returns false if there's nothing to move
+  public boolean migrate(String topLevelName, int toShard) {
+    StampedLock lock = stripeOf(topLevelName);
+    long stamp = lock.writeLock();
+    try {
+      return migrateLocked(topLevelName, toShard);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private boolean migrateLocked(String top, int toShard) {
+    int from = shardOfTop(top);
+    if (from == toShard)
+      return false;
+    String path = "/" + top;
+    FileSystemNode subtree = shards[from].exportSubtree(path);
+    if (subtree == null) {
+      placement.put(top, toShard);
+      return false;
+    }
+    if (!shards[toShard].importSubtree(path, subtree))
+      throw new IllegalStateException(path + " exists on shard " + toShard + " already");
+    placement.put(top, toShard);
+    shards[from].deletePath(path);
+    return true;
+  }
+
+  // Spread the top-level subtrees over the shards by node count, largest first: a subtree stays
+  // where it is while its shard has room for it (an even share of all nodes, rounded up) and
+  // otherwise goes to the least loaded shard so far, like greedy LPT scheduling. Keeping
+  // subtrees in place makes a second rebalance of a balanced tree move nothing
+  // Returns the number of subtrees that changed shard
+  public int rebalance() {
+    Map<String, Long> sizes = new HashMap<>();
+    long total = 0;
+    for (FileSystem shard : shards) {
+      for (String path : (Iterable<String>) shard.find("/*")::iterator) {
+        TreeStatistics statistics = shard.getTreeStatistics(path);
+        if (statistics != null) {
+          long size = statistics.getFiles() + statistics.getDirectories();
+          sizes.put(path.substring(1), size);
+          total += size;
+        }
+      }
+    }
+    long share = (total + shards.length - 1) / shards.length;
+    List<Map.Entry<String, Long>> largestFirst = new ArrayList<>(sizes.entrySet());
+    largestFirst.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+    long[] load = new long[shards.length];
+    int moved = 0;
+    for (Map.Entry<String, Long> entry : largestFirst) {
+      long size = entry.getValue();
+      int target = shardOfTop(entry.getKey());
+      if (load[target] + size > share) {
+        for (int i = 0; i < load.length; i++) {
+          if (load[i] < load[target])
+            target = i;
+        }
+      }
+      load[target] += size;
+      if (migrate(entry.getKey(), target))
+        moved++;
+    }
+    return moved;
+  }
+
+  // Nodes held by each shard
+  public long[] getShardSizes() {
+    long[] sizes = new long[shards.length];
+    for (int i = 0; i < shards.length; i++) {
+      TreeStatistics statistics = shards[i].getTreeStatistics();
+      sizes[i] = statistics.getFiles() + statistics.getDirectories();
+    }
+    return sizes;
+  }
+
+  // Write-lock the stripes of two top-level names in a fixed order, so two moves can't deadlock
+  private StampedLock[] lockBoth(String first, String second) {
+    StampedLock a = stripeOf(first);
+    StampedLock b = stripeOf(second);
+    if (a == b)
+      return lockAll(a);
+    int order = Integer.compare(System.identityHashCode(a), System.identityHashCode(b));
+    if (order == 0)
+      order = Integer.compare(Math.floorMod(first.hashCode(), LOCK_STRIPES),
+          Math.floorMod(second.hashCode(), LOCK_STRIPES));
+    return order < 0 ? lockAll(a, b) : lockAll(b, a);
+  }
+
+  private static StampedLock[] lockAll(StampedLock... locks) {
+    for (StampedLock lock : locks)
+      lock.asWriteLock().lock();
+    return locks;
+  }
+
+  private static void unlock(StampedLock[] locks) {
+    for (int i = locks.length - 1; i >= 0; i--)
+      locks[i].asWriteLock().unlock();
+  }
+
+  // Stop the shard executors (queued operations still run) and close the shards
+  @Override
+  public void close() throws IOException {
+    for (ExecutorService executor : executors)
+      executor.shutdown();
+    for (FileSystem shard : shards)
+      shard.close();
+  }
+}
+
+
+// Lookup cache against deletes: once a path is deleted, a cached lookup must not keep it
+// readable, even when the deleted directories still share their children with a copy or a snapshot
+// Throws on the first path that is still readable
+public class PathLookupCacheCheck {
+  public static void main(String[] args) {
+    // Copy, then delete below the original
+    FileSystem fs = tree();
+    fs.copyPath("/a", "/x");
+    expect(fs, "/a/b/c.txt", "hello");
+    fs.deletePath("/a/b");
+    expect(fs, "/a/b/c.txt", null);
+    expect(fs, "/x/b/c.txt", "hello");
+    // Snapshot, then delete the whole directory
+    fs = tree();
+    try (FileSystemSnapshot snapshot = fs.snapshot()) {
+      fs.deletePath("/a");
+      expect(fs, "/a/b/c.txt", null);
+      if (!"hello".equals(snapshot.getFileContent("/a/b/c.txt")))
+        throw new IllegalStateException("the snapshot lost /a/b/c.txt");
+    }
+    System.out.println("ok");
+  }
+
+  // "/a/b/c.txt" = "hello", already in the lookup cache
+  private static FileSystem tree() {
+    FileSystem fs = new FileSystem(1024);
+    fs.createPath("/a/b/c.txt");
+    fs.setFileContent("/a/b/c.txt", "hello");
+    expect(fs, "/a/b/c.txt", "hello");
+    return fs;
+  }
+
+  private static void expect(FileSystem fs, String path, String content) {
+    String actual = fs.getFileContent(path);
+    if (!Objects.equals(actual, content))
+      throw new IllegalStateException(path + " reads " + actual + ", expected " + content);
+  }
+}
+
+
+// Create/delete races on one shared FileSystem: writer threads create and write their own file
+// in sibling and nested directories ("/a1/b2/f3.txt") while deleter threads delete those
+// directories ("/a1", "/a1/b2") under them. Every operation must act as if it ran alone:
+// - a writer reads back either its own last write or nothing (its file was deleted), never
+//   another writer's content
+// - afterwards a write to every path either fails (it doesn't exist) or reads back, so no
+//   reachable node was left marked removed by a delete that lost a race
+// Throws on the first violation
+// Usage: FileSystemStressRun [writers] [deleters] [seconds]
+public class FileSystemStressRun {
+  public static void main(String[] args) throws Exception {
+    int writers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int deleters = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+    double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+    FileSystem fs = new FileSystem();
+    long deadline = System.nanoTime() + (long) (seconds * 1e9);
+    LongAdder operations = new LongAdder();
+    AtomicReference<String> violation = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      int writer = w;
+      threads.add(new Thread(() -> {
+        SplittableRandom random = new SplittableRandom(writer);
+        long version = 0;
+        while (System.nanoTime() < deadline && violation.get() == null) {
+          String path = "/a" + random.nextInt(3) + "/b" + random.nextInt(3) + "/f" + writer + ".txt";
+          fs.createPath(path);
+          String content = writer + ":" + version++;
+          boolean written = fs.setFileContent(path, content);
+          String read = fs.getFileContent(path);
+          if (read != null && !(written && read.equals(content)))
+            violation.compareAndSet(null, path + " read " + read + " after writing " + content);
+          operations.add(3);
+        }
+      }));
+    }
+    for (int d = 0; d < deleters; d++) {
+      int deleter = d;
+      threads.add(new Thread(() -> {
+        SplittableRandom random = new SplittableRandom(1000 + deleter);
+        while (System.nanoTime() < deadline && violation.get() == null) {
+          fs.deletePath(random.nextBoolean() ? "/a" + random.nextInt(3)
+              : "/a" + random.nextInt(3) + "/b" + random.nextInt(3));
+          operations.increment();
+        }
+      }));
+    }
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    if (violation.get() != null)
+      throw new IllegalStateException(violation.get());
+    int files = 0;
+    for (int a = 0; a < 3; a++) {
+      for (int b = 0; b < 3; b++) {
+        for (int w = 0; w < writers; w++) {
+          String path = "/a" + a + "/b" + b + "/f" + w + ".txt";
+          String expected = fs.setFileContent(path, "final") ? "final" : null;
+          if (!Objects.equals(expected, fs.getFileContent(path)))
+            throw new IllegalStateException(path + " reads " + fs.getFileContent(path) + ", expected " + expected);
+          if (expected != null)
+            files++;
+        }
+      }
+    }
+    System.out.printf("%d writers, %d deleters: %.0f operations/sec, %d files left, no violations%n",
+        writers, deleters, operations.sum() / seconds, files);
+  }
+}
+
+
+// Rough heap cost per trie node: builds a tree through the public API and compares used heap
+// before and after, with the file system still reachable
+// Usage: FileSystemMemoryBenchmark [directories] [filesPerDirectory]   (run with e.g. -Xmx4g)
+public class FileSystemMemoryBenchmark {
+  public static void main(String[] args) {
+    int directories = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int filesPerDirectory = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+    long before = usedHeap();
+    // No lookup cache, so only the tree itself is measured
+    FileSystem fs = new FileSystem(0);
+    long nodes = 0;
+    // "/project7/module42" directories, each holding "file0.txt" .. "file8.txt"
+    StringBuilder path = new StringBuilder();
+    for (int d = 0; d < directories; d++) {
+      path.setLength(0);
+      path.append("/project").append(d % 100).append("/module").append(d / 100);
+      int directoryLength = path.length();
+      for (int f = 0; f < filesPerDirectory; f++) {
+        path.setLength(directoryLength);
+        path.append("/file").append(f).append(".txt");
+        if (fs.createPath(path.toString()))
+          nodes++;
+      }
+    }
+    // Every module directory, plus the 100 project directories
+    nodes += directories + Math.min(directories, 100);
+    long after = usedHeap();
+    System.out.printf("%d nodes, %.1f bytes per node%n", nodes, (after - before) / (double) nodes);
+    // Keep the tree alive until after the measurement
+    if (fs.getFileContent("/project0/module0/file0.txt") != null)
+      System.out.println();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    return heap.getUsed();
+  }
+}
+
+
+// Rendering time of a big tree: recursive display (one System.out.println per node) against
+// TreePrinter writing to a Writer. Both write through System.out into a discarding stream,
+// so only the rendering and the sink's per-call cost are measured
+// Usage: FileSystemDisplayBenchmark [directories] [filesPerDirectory]
+public class FileSystemDisplayBenchmark {
+  public static void main(String[] args) throws IOException {
+    int directories = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int filesPerDirectory = args.length > 1 ? Integer.parseInt(args[1]) : 9;
+    // Build the nodes directly, the benchmark is about rendering
+    Directory root = new Directory("/");
+    for (int d = 0; d < directories; d++) {
+      Directory directory = new Directory("module" + d);
+      root.addChild(directory.getName(), directory);
+      for (int f = 0; f < filesPerDirectory; f++) {
+        File file = new File("file" + f + ".txt");
+        directory.addChild(file.getName(), file);
+      }
+    }
+    PrintStream console = System.out;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream(), false, "UTF-8");
+    System.setOut(discard);
+    try {
+      for (int round = 0; round < 5; round++) {
+        long start = System.nanoTime();
+        root.display(0);
+        long recursive = System.nanoTime() - start;
+        start = System.nanoTime();
+        Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        new TreePrinter(TreePrinter.Format.TEXT).print(root, "/", writer);
+        long iterative = System.nanoTime() - start;
+        console.printf("round %d: recursive println %d ms, TreePrinter %d ms%n",
+            round, recursive / 1_000_000, iterative / 1_000_000);
+      }
+    } finally {
+      System.setOut(console);
+    }
+  }
+}
+
+
+// Reproducible path sets for benchmarks: the same shape and seed always give the same paths,
+// so numbers from two versions of the code are measured on identical trees
+//   wide(3, 2, seed)      -> /w0/d0/{a.md, b.txt}, /w1/d1/{...}, /w2/d2/{...}
+//   deep(1, 3, 1, seed)   -> /c0/l1/l2/l3/{a.java}
+public class BenchmarkDataset {
+  private static final String[] EXTENSIONS = {"txt", "md", "java", "json", "log"};
+  private final String[] directories;
+  private final String[] files;
+
+  private BenchmarkDataset(List<String> directories, List<String> files) {
+    this.directories = directories.toArray(new String[0]);
+    this.files = files.toArray(new String[0]);
+  }
+
+  // Many short paths: directories spread over 100 top-level directories, two levels deep
+  public static BenchmarkDataset wide(int directories, int filesPerDirectory, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    List<String> directoryPaths = new ArrayList<>(directories);
+    List<String> filePaths = new ArrayList<>(directories * filesPerDirectory);
+    for (int d = 0; d < directories; d++) {
+      String directory = "/w" + (d % 100) + "/d" + d;
+      directoryPaths.add(directory);
+      addFiles(directory, filesPerDirectory, random, filePaths);
+    }
+    return new BenchmarkDataset(directoryPaths, filePaths);
+  }
+
+  // Few long paths: chains of depth nested directories, with files in the deepest one
+  public static BenchmarkDataset deep(int chains, int depth, int filesPerDirectory, long seed) {
+    SplittableRandom random = new SplittableRandom(seed);
+    List<String> directoryPaths = new ArrayList<>(chains);
+    List<String> filePaths = new ArrayList<>(chains * filesPerDirectory);
+    StringBuilder path = new StringBuilder();
+    for (int c = 0; c < chains; c++) {
+      path.setLength(0);
+      path.append("/c").append(c);
+      for (int level = 1; level <= depth; level++)
+        path.append("/l").append(level);
+      String directory = path.toString();
+      directoryPaths.add(directory);
+      addFiles(directory, filesPerDirectory, random, filePaths);
+    }
+    return new BenchmarkDataset(directoryPaths, filePaths);
+  }
+
+  // "src17.java": a unique name with a seeded extension
+  private static void addFiles(String directory, int count, SplittableRandom random,
+      List<String> filePaths) {
+    for (int f = 0; f < count; f++)
+      filePaths.add(directory + "/f" + f + "." + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+  }
+
+  public String[] getDirectories() {
+    return directories;
+  }
+
+  public String[] getFiles() {
+    return files;
+  }
+
+  // Create every file (and so every directory) of the dataset
+  public FileSystem populate(FileSystem fs) {
+    for (String file : files)
+      fs.createPath(file);
+    return fs;
+  }
+
+  // Skewed file choice: 90% of draws land on the first 1% of the files, like a working set
+  public String hotFile(SplittableRandom random) {
+    int hot = Math.max(1, files.length / 100);
+    return files[random.nextInt(10) < 9 ? random.nextInt(hot) : random.nextInt(files.length)];
+  }
+}
+
+
+// Microbenchmarks for the FileSystem trie, run the way JMH would run them: each benchmark gets
+// warmup iterations, then measured iterations of a fixed duration on 1..N threads. Reported
+// per benchmark: throughput with its spread over the iterations, bytes allocated per operation
+// (from the per-thread allocation counters) and the collections that ran while measuring
+// Every dataset comes from BenchmarkDataset with a fixed seed
+// Usage: FileSystemBenchmark [nameFilter] [secondsPerIteration] [maxThreads]   (e.g. -Xmx4g)
+public class FileSystemBenchmark {
+  private static final long SEED = 42;
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASURED_ITERATIONS = 5;
+
+  // One call of the benchmarked code; index counts this thread's calls in this iteration
+  interface Operation {
+    void run(int thread, long index) throws IOException;
+  }
+
+  // Fresh state for an iteration (an empty FileSystem for the create benchmarks, for example)
+  interface Setup {
+    Operation prepare(int threads) throws IOException;
+  }
+
+  private final String filter;
+  private final long iterationNanos;
+
+  public FileSystemBenchmark(String filter, double secondsPerIteration) {
+    this.filter = filter;
+    this.iterationNanos = (long) (secondsPerIteration * 1e9);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String filter = args.length > 0 ? args[0] : "";
+    double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+    int maxThreads = args.length > 2 ? Integer.parseInt(args[2])
+        : Runtime.getRuntime().availableProcessors();
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < maxThreads; threads *= 2)
+      threadCounts.add(threads);
+    threadCounts.add(maxThreads);
+    new FileSystemBenchmark(filter, seconds).runAll(threadCounts);
+  }
+
+  public void runAll(List<Integer> threadCounts) throws Exception {
+    BenchmarkDataset wide = BenchmarkDataset.wide(100_000, 10, SEED);
+    BenchmarkDataset deep = BenchmarkDataset.deep(10_000, 32, 10, SEED);
+    System.out.printf("%-32s %7s %16s %8s %10s %12s%n",
+        "benchmark", "threads", "ops/s", "error", "B/op", "gc");
+
+    // createPath into an empty tree; a thread wraps around its share of the dataset only if
+    // an iteration outruns it, and from then on measures creates of existing paths
+    // The ".metrics" runs repeat a benchmark with FileSystemMetrics recording, for its overhead
+    for (BenchmarkDataset dataset : List.of(wide, deep)) {
+      String shape = dataset == wide ? "wide" : "deep";
+      String[] files = dataset.getFiles();
+      for (boolean withMetrics : new boolean[] {false, true}) {
+        for (int threads : threadCounts) {
+          run("createPath." + shape + (withMetrics ? ".metrics" : ""), threads, n -> {
+            FileSystem fs = new FileSystem();
+            if (withMetrics)
+              fs.enableMetrics();
+            return (thread, index) ->
+                fs.createPath(files[(int) ((index * n + thread) % files.length)]);
+          });
+        }
+      }
+    }
+
+    // Lookups of existing files, skewed to a hot set: with and without the lookup cache, and
+    // uncached with metrics
+    for (BenchmarkDataset dataset : List.of(wide, deep)) {
+      String shape = dataset == wide ? "wide" : "deep";
+      for (String variant : new String[] {"cached", "uncached", "uncached.metrics"}) {
+        String name = "lookup." + shape + "." + variant;
+        if (!matches(name))
+          continue;
+        FileSystem fs = dataset.populate(
+            new FileSystem(variant.equals("cached") ? FileSystem.DEFAULT_LOOKUP_CACHE_CAPACITY : 0));
+        if (variant.endsWith(".metrics"))
+          fs.enableMetrics();
+        for (int threads : threadCounts) {
+          run(name, threads, n -> {
+            SplittableRandom[] randoms = randoms(n);
+            return (thread, index) -> fs.getFileContent(dataset.hotFile(randoms[thread]));
+          });
+        }
+      }
+    }
+
+    // Mixed reads and content writes on the hot set, at several read percentages
+    if (matches("mixed")) {
+      FileSystem fs = wide.populate(new FileSystem());
+      String payload = "x".repeat(64);
+      for (int readPercent : new int[] {95, 50}) {
+        for (int threads : threadCounts) {
+          run("mixed.read" + readPercent, threads, n -> {
+            SplittableRandom[] randoms = randoms(n);
+            return (thread, index) -> {
+              SplittableRandom random = randoms[thread];
+              String file = wide.hotFile(random);
+              if (random.nextInt(100) < readPercent)
+                fs.getFileContent(file);
+              else
+                fs.setFileContent(file, payload);
+            };
+          });
+        }
+      }
+    }
+
+    // Create a small subtree and delete it again
+    for (int threads : threadCounts) {
+      run("create+deleteRecursive", threads, n -> {
+        FileSystem fs = new FileSystem();
+        return (thread, index) -> {
+          String directory = "/t" + thread + "/d" + index;
+          for (int f = 0; f < 8; f++)
+            fs.createPath(directory + "/f" + f + ".txt");
+          fs.deleteRecursive(directory);
+        };
+      });
+    }
+
+    // Write-heavy mix spread over the wide dataset's 100 top-level directories: every other
+    // operation creates a file, the others rewrite the file created just before. One FileSystem
+    // against a ShardedFileSystem with a shard per thread
+    String[] topLevels = Arrays.stream(wide.getDirectories())
+        .map(directory -> directory.substring(0, directory.indexOf('/', 1)))
+        .distinct().toArray(String[]::new);
+    String payload = "x".repeat(64);
+    for (boolean sharded : new boolean[] {false, true}) {
+      for (int threads : threadCounts) {
+        run(sharded ? "scaling.sharded" : "scaling.single", threads, n -> {
+          ShardedFileSystem shardedFs = sharded ? new ShardedFileSystem(n) : null;
+          FileSystem fs = sharded ? null : new FileSystem();
+          SplittableRandom[] randoms = randoms(n);
+          String[] last = new String[n];
+          return (thread, index) -> {
+            if ((index & 1) == 0) {
+              String top = topLevels[randoms[thread].nextInt(topLevels.length)];
+              last[thread] = top + "/t" + thread + "/f" + index + ".txt";
+              if (sharded)
+                shardedFs.createPath(last[thread]);
+              else
+                fs.createPath(last[thread]);
+            } else if (sharded) {
+              shardedFs.setFileContent(last[thread], payload);
+            } else {
+              fs.setFileContent(last[thread], payload);
+            }
+          };
+        });
+      }
+    }
+
+    // Whole-file writes of large content, one file per thread
+    for (int size : new int[] {64 << 10, 4 << 20}) {
+      byte[] content = new byte[size];
+      new SplittableRandom(SEED).nextBytes(content);
+      for (int threads : threadCounts) {
+        run("write." + (size >> 10) + "KB", threads, n -> {
+          FileSystem fs = new FileSystem();
+          for (int thread = 0; thread < n; thread++)
+            fs.createPath("/large/f" + thread + ".bin");
+          return (thread, index) -> {
+            try (OutputStream out = fs.openWrite("/large/f" + thread + ".bin")) {
+              out.write(content);
+            }
+          };
+        });
+      }
+    }
+
+    // Render the whole wide tree (about 1.1M lines) to a discarding writer
+    if (matches("display")) {
+      FileSystem fs = wide.populate(new FileSystem());
+      Writer sink = Writer.nullWriter();
+      run("display.wide", 1, n ->
+          (thread, index) -> fs.display(sink, Integer.MAX_VALUE, 0, Long.MAX_VALUE));
+    }
+  }
+
+  private boolean matches(String name) {
+    return name.contains(filter);
+  }
+
+  private static SplittableRandom[] randoms(int threads) {
+    SplittableRandom[] randoms = new SplittableRandom[threads];
+    for (int thread = 0; thread < threads; thread++)
+      randoms[thread] = new SplittableRandom(SEED + thread);
+    return randoms;
+  }
+
+  // Warm up, measure and print one line for a benchmark at one thread count
+  private void run(String name, int threads, Setup setup) throws Exception {
+    if (!matches(name))
+      return;
+    for (int i = 0; i < WARMUP_ITERATIONS; i++)
+      iteration(setup.prepare(threads), threads);
+    double[] throughput = new double[MEASURED_ITERATIONS];
+    long operations = 0;
+    long allocated = 0;
+    long collections = -gcCount();
+    long gcMillis = -gcMillis();
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      long[] result = iteration(setup.prepare(threads), threads);
+      throughput[i] = result[0] * 1e9 / result[2];
+      operations += result[0];
+      allocated += result[1];
+    }
+    collections += gcCount();
+    gcMillis += gcMillis();
+    double mean = Arrays.stream(throughput).average().orElse(0);
+    double variance = Arrays.stream(throughput).map(t -> (t - mean) * (t - mean)).sum()
+        / Math.max(1, MEASURED_ITERATIONS - 1);
+    System.out.printf("%-32s %7d %16.0f %7.1f%% %10.1f %5d (%d ms)%n", name, threads, mean,
+        mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean,
+        operations == 0 ? 0 : allocated / (double) operations, collections, gcMillis);
+  }
+
+  // Run the operation on all threads for one iteration; returns {operations, bytes allocated,
+  // elapsed nanos}
+  private long[] iteration(Operation operation, int threads) throws Exception {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long[] operations = new long[threads];
+    long[] allocated = new long[threads];
+    Throwable[] failure = new Throwable[1];
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      workers[t] = new Thread(() -> {
+        try {
+          start.await();
+          long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+          long index = 0;
+          while (!stop.get())
+            operation.run(thread, index++);
+          allocated[thread] = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+          operations[thread] = index;
+        } catch (Throwable e) {
+          failure[0] = e;
+        }
+      }, "benchmark-" + t);
+      workers[t].start();
+    }
+    long began = System.nanoTime();
+    start.countDown();
+    Thread.sleep(iterationNanos / 1_000_000, (int) (iterationNanos % 1_000_000));
+    stop.set(true);
+    for (Thread worker : workers)
+      worker.join();
+    long elapsed = System.nanoTime() - began;
+    if (failure[0] != null)
+      throw new IllegalStateException("benchmark failed", failure[0]);
+    return new long[] {Arrays.stream(operations).sum(), Arrays.stream(allocated).sum(), elapsed};
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(0, gc.getCollectionCount());
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(0, gc.getCollectionTime());
+    return millis;
+  }
+}
+
+
+// Runs a script of client commands: one command per line, same syntax as the interactive client
+// Lines are split by scanning for whitespace, and consecutive creates (or reads) under the same
+// directory are collected into one run that walks the directory once:
+//   create /docs/a.md
+//   create /docs/b.md     -> fs.createChildren("/docs", [a.md, b.md, c])
+//   create /docs/c
+//   read /docs/a.md       -> new run: fs.getFileContents("/docs", [a.md])
+// Results are written in command order through one buffered writer
+public class CommandBatch {
+  private static final int OUTPUT_BUFFER = 1 << 16;
+  private final FileSystem fs;
+  // The run being collected: its command ("create" or "read"), directory and child names
+  private String runCommand;
+  private String runParent;
+  private final List<String> runNames = new ArrayList<>();
+  private long commands;
+
+  public CommandBatch(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  // Execute every command of the input; returns the number of commands executed
+  public long run(BufferedReader in, OutputStream resultStream) throws IOException {
+    Writer out = new BufferedWriter(
+        new OutputStreamWriter(resultStream, StandardCharsets.UTF_8), OUTPUT_BUFFER);
+    long started = System.nanoTime();
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (!execute(line, out))
+        break;
+    }
+    flushRun(out);
+    out.flush();
+    long elapsed = Math.max(1, System.nanoTime() - started);
+    System.err.printf("Executed %d commands in %d ms (%.0f commands/sec)%n", commands,
+        elapsed / 1_000_000, commands * 1e9 / elapsed);
+    return commands;
+  }
+
+  // Execute (or queue) one line; returns false on "exit"
+  private boolean execute(String line, Writer out) throws IOException {
+    // "  write /a/b.txt hello world" -> command "write", path "/a/b.txt", rest "hello world"
+    int commandStart = skipSpaces(line, 0);
+    if (commandStart == line.length())
+      return true; // Skip empty input
+    int commandEnd = skipWord(line, commandStart);
+    int pathStart = skipSpaces(line, commandEnd);
+    int pathEnd = skipWord(line, pathStart);
+    int restStart = skipSpaces(line, pathEnd);
+    String command = line.substring(commandStart, commandEnd).toLowerCase();
+    String path = pathStart < pathEnd ? line.substring(pathStart, pathEnd) : null;
+    commands++;
+    // Only a plain "<parent>/<name>" can join a run; anything else runs on its own
+    int slash = path == null ? -1 : path.lastIndexOf('/');
+    if ((command.equals("create") || command.equals("read")) && slash >= 0
+        && slash < path.length() - 1 && fs.isValidFilePath(path)) {
+      String parent = slash == 0 ? "/" : path.substring(0, slash);
+      if (!command.equals(runCommand) || !parent.equals(runParent)) {
+        flushRun(out);
+        runCommand = command;
+        runParent = parent;
+      }
+      runNames.add(path.substring(slash + 1));
+      return true;
+    }
+    flushRun(out);
+    try {
+      switch (command) {
+        case "create":
+          if (path != null)
+            println(out, fs.createPath(path) ? "Path created successfully" : "Failed to create path");
+          else
+            println(out, "Usage: create <path>");
+          break;
+        case "write":
+          if (path != null && restStart < line.length()) {
+            String content = line.substring(restStart).trim();
+            println(out, fs.setFileContent(path, content)
+                ? "Content written successfully" : "Failed to write content");
+          } else {
+            println(out, "Usage: write <path> <content>");
+          }
+          break;
+        case "read":
+          if (path != null)
+            printContent(out, fs.getFileContent(path));
+          else
+            println(out, "Usage: read <path>");
+          break;
+        case "delete":
+          if (path != null)
+            println(out, fs.deletePath(path) ? "Path deleted successfully" : "Failed to delete path");
+          else
+            println(out, "Usage: delete <path>");
+          break;
+        case "display":
+          println(out, "File System Structure:");
+          fs.display(out, Integer.MAX_VALUE, 0, Long.MAX_VALUE);
+          break;
+        case "exit":
+          return false;
+        default:
+          println(out, "Unknown command. Available commands: create, write, read, delete, display, exit");
+      }
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      println(out, "Error: " + e.getMessage());
+    }
+    return true;
+  }
+
+  // Execute the collected run, printing one result per queued command
+  private void flushRun(Writer out) throws IOException {
+    if (runNames.isEmpty())
+      return;
+    try {
+      if (runCommand.equals("create")) {
+        for (boolean created : fs.createChildren(runParent, runNames))
+          println(out, created ? "Path created successfully" : "Failed to create path");
+      } else {
+        for (String content : fs.getFileContents(runParent, runNames))
+          printContent(out, content);
+      }
+    } catch (RuntimeException e) {
+      for (int i = 0; i < runNames.size(); i++)
+        println(out, "Error: " + e.getMessage());
+    }
+    runNames.clear();
+    runCommand = null;
+    runParent = null;
+  }
+
+  private static void printContent(Writer out, String content) throws IOException {
+    if (content != null) {
+      out.write("Content: ");
+      println(out, content);
+    } else {
+      println(out, "Failed to read content");
+    }
+  }
+
+  private static void println(Writer out, String text) throws IOException {
+    out.write(text);
+    out.write('\n');
+  }
+
+  private static int skipSpaces(String line, int index) {
+    while (index < line.length() && Character.isWhitespace(line.charAt(index)))
+      index++;
+    return index;
+  }
+
+  private static int skipWord(String line, int index) {
+    while (index < line.length() && !Character.isWhitespace(line.charAt(index)))
+      index++;
+    return index;
+  }
+}
+
+// Client code to test the file system
+// Usage: FileSystemClient [dataDirectory] [--batch <commandFile | ->]
+// In batch mode commands are read from the file (or stdin for "-") without prompts, and the
+// results go to stdout with the throughput on stderr
+public class FileSystemClient {
+  public static void main(String[] args) throws IOException {
+    String dataDirectory = null;
+    String batchInput = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--batch") && i + 1 < args.length)
+        batchInput = args[++i];
+      else
+        dataDirectory = args[i];
+    }
+    // Create a new file system instance
+    // With a directory argument the file system is durable and survives restarts
+    FileSystem fs = dataDirectory != null ? FileSystem.open(Paths.get(dataDirectory)) : new FileSystem();
+    if (batchInput != null) {
+      try (BufferedReader in = batchInput.equals("-")
+          ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+          : Files.newBufferedReader(Paths.get(batchInput), StandardCharsets.UTF_8)) {
+        new CommandBatch(fs).run(in, System.out);
+      } finally {
+        fs.close();
+      }
+      return;
+    }
     // Create a scanner to handle user input
     Scanner scanner = new Scanner(System.in);
     boolean isRunning = true; // Flag to control the program loop
@@ -451,5 +5422,7 @@ public class FileSystemClient {
     }
     // Close the scanner to release system resources
     scanner.close();
+    // Checkpoint a durable file system so the next start has no log to replay
+    fs.close();
   }
 }
\ No newline at end of file
@@ -10,6 +10,9 @@ class Hotel{
     Location hotelLocation;
 
     List<Room> roomList;
+
+    // every room of roomList is also added here, so searches never scan roomList
+    AvailabilityIndex availability;
 }
 
 class Location{
@@ -59,11 +62,340 @@ class RoomKey{
 
 }
 
+// Key service for the door locks: every swipe is a lookup of the key's barcode, so keys live in an
+// open addressing hash table keyed by the barcode as a long (barcodes are 16 hex digits of a
+// random 64-bit number), with the key's room, room generation and expiry in parallel arrays
+//
+//   barcodes   [0][9f3c..][0][41aa..]...     0 = empty
+//   rooms      [ ][  17  ][ ][  -1  ]...     -1 = master key, opens every room
+//   generation [ ][   4  ][ ][   0  ]...
+//   expiresAt  [ ][ 1730..][ ][ 1731..]...    0 = revoked
+//
+// a swipe parses the barcode, probes the table and compares two ints and a long: no locks and no
+// allocation. revoking every key of a room (at check-out) bumps the room's generation, so the old
+// keys stop opening the door at once, however many there are. keys also stop working when they
+// expire (TTL), and dead entries are dropped when the table is rebuilt
+//
+// writers (issue, revoke, rebuild) take a lock. an entry's arrays are written before its barcode
+// (a volatile write), so a lookup that finds the barcode sees the whole entry; a dead key keeps its
+// slot until a rebuild into a new table drops it, so a slot is never reused under a lookup
+class RoomKeyService{
+    private static final long EMPTY = 0;
+    private static final int MASTER = -1;
+
+    private final int maxRooms;
+    // room -> room id (the door lock of a room keeps its id); guarded by this for writes
+    private final ConcurrentHashMap<Room, Integer> roomIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Room> roomsById;
+    private final AtomicIntegerArray generations;
+    private final SecureRandom random = new SecureRandom();
+    private volatile Table table = new Table(1024);
+
+    static class Table{
+        final AtomicLongArray barcodes;
+        final int[] rooms;
+        final int[] generations;
+        final AtomicLongArray expiresAt;
+        final int mask;
+        // filled slots, dead keys included; guarded by the service
+        int used;
+
+        Table(int capacity){
+            barcodes = new AtomicLongArray(capacity);
+            rooms = new int[capacity];
+            generations = new int[capacity];
+            expiresAt = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    public RoomKeyService(int maxRooms){
+        this.maxRooms = maxRooms;
+        this.roomsById = new AtomicReferenceArray<>(maxRooms);
+        this.generations = new AtomicIntegerArray(maxRooms);
+    }
+
+    // revoke a booking's keys when its guests check out
+    public void revokeOnCheckOut(Booking booking){
+        booking.addCheckOutListener(stay -> {
+            for (Room room : stay.roomInfo) {
+                revokeAll(room);
+            }
+        });
+    }
+
+    // the id the room's door lock validates against
+    public synchronized int roomId(Room room){
+        Integer id = roomIds.get(room);
+        if (id == null) {
+            id = roomIds.size();
+            if (id >= maxRooms) {
+                throw new IllegalStateException("more than " + maxRooms + " rooms");
+            }
+            roomsById.set(id, room);
+            roomIds.put(room, id);
+        }
+        return id;
+    }
+
+    public RoomKey issue(Room room, long ttlMillis){
+        return issue(roomId(room), false, ttlMillis);
+    }
+
+    public RoomKey issueMaster(long ttlMillis){
+        return issue(MASTER, true, ttlMillis);
+    }
+
+    private synchronized RoomKey issue(int roomId, boolean master, long ttlMillis){
+        long now = System.currentTimeMillis();
+        long barcode;
+        do {
+            barcode = random.nextLong();
+        } while (barcode == EMPTY || find(table, barcode) >= 0);
+        Table current = table;
+        if ((current.used + 1) * 2 > current.barcodes.length()) {
+            current = rebuild(now);
+        }
+        int i = slot(barcode, current.mask);
+        while (current.barcodes.get(i) != EMPTY) {
+            i = (i + 1) & current.mask;
+        }
+        current.rooms[i] = roomId;
+        current.generations[i] = master ? 0 : generations.get(roomId);
+        current.expiresAt.set(i, expiry(now, ttlMillis));
+        current.barcodes.set(i, barcode);
+        current.used++;
+        RoomKey key = new RoomKey();
+        key.barCode = String.format("%016x", barcode);
+        key.keyId = key.barCode;
+        key.issuedAt = new Date(now);
+        key.isActivee = true;
+        key.isMaster = master;
+        return key;
+    }
+
+    // does this key open this room's door now
+    public boolean validate(String barCode, Room room){
+        Integer roomId = roomIds.get(room);
+        long barcode = parse(barCode);
+        return roomId != null && barcode != EMPTY && validate(barcode, roomId, System.currentTimeMillis());
+    }
+
+    // the door lock's own check: barcode already read as a number, room id stored in the lock
+    public boolean validate(long barcode, int roomId, long nowMillis){
+        Table current = table;
+        int i = find(current, barcode);
+        if (i < 0 || nowMillis >= current.expiresAt.get(i)) {
+            return false;
+        }
+        int room = current.rooms[i];
+        return room == MASTER || (room == roomId && current.generations[i] == generations.get(roomId));
+    }
+
+    // the room a key was issued for (null for a master key, or a key that doesn't work any more)
+    public Room roomOf(String barCode){
+        Table current = table;
+        int i = find(current, parse(barCode));
+        if (i < 0 || System.currentTimeMillis() >= current.expiresAt.get(i) || current.rooms[i] == MASTER) {
+            return null;
+        }
+        int room = current.rooms[i];
+        return current.generations[i] == generations.get(room) ? roomsById.get(room) : null;
+    }
+
+    // every key issued for the room so far stops working, all at once
+    public void revokeAll(Room room){
+        Integer roomId = roomIds.get(room);
+        if (roomId != null) {
+            generations.incrementAndGet(roomId);
+        }
+    }
+
+    public synchronized void revoke(String barCode){
+        Table current = table;
+        int i = find(current, parse(barCode));
+        if (i >= 0) {
+            current.expiresAt.set(i, 0);
+        }
+    }
+
+    // drop expired and revoked keys (also done whenever the table fills up)
+    public synchronized void purge(){
+        rebuild(System.currentTimeMillis());
+    }
+
+    // keys in the table: dead ones count until the next rebuild
+    public synchronized int getKeyCount(){
+        return table.used;
+    }
+
+    // guarded by this: copy the keys that still work into a new table, twice as big as they need
+    private Table rebuild(long now){
+        Table old = table;
+        int live = 0;
+        for (int i = 0; i <= old.mask; i++) {
+            if (works(old, i, now)) {
+                live++;
+            }
+        }
+        int capacity = 1024;
+        while (capacity < live * 4) {
+            capacity *= 2;
+        }
+        Table rebuilt = new Table(capacity);
+        for (int i = 0; i <= old.mask; i++) {
+            if (works(old, i, now)) {
+                long barcode = old.barcodes.get(i);
+                int j = slot(barcode, rebuilt.mask);
+                while (rebuilt.barcodes.get(j) != EMPTY) {
+                    j = (j + 1) & rebuilt.mask;
+                }
+                rebuilt.rooms[j] = old.rooms[i];
+                rebuilt.generations[j] = old.generations[i];
+                rebuilt.expiresAt.set(j, old.expiresAt.get(i));
+                rebuilt.barcodes.set(j, barcode);
+            }
+        }
+        rebuilt.used = live;
+        table = rebuilt;
+        return rebuilt;
+    }
+
+    // now + ttl, saturated: a huge ttl never expires instead of wrapping around to the past
+    private static long expiry(long now, long ttlMillis){
+        try {
+            return Math.addExact(now, ttlMillis);
+        } catch (ArithmeticException e) {
+            return ttlMillis > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+    }
+
+    private boolean works(Table t, int i, long now){
+        long barcode = t.barcodes.get(i);
+        if (barcode == EMPTY || now >= t.expiresAt.get(i)) {
+            return false;
+        }
+        int room = t.rooms[i];
+        return room == MASTER || t.generations[i] == generations.get(room);
+    }
+
+    // slot of the barcode, -1 if it isn't there
+    private static int find(Table t, long barcode){
+        int i = slot(barcode, t.mask);
+        while (true) {
+            long at = t.barcodes.get(i);
+            if (at == barcode) {
+                return i;
+            }
+            if (at == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // random barcodes hash well already; mixing keeps made-up ones from clustering
+    private static int slot(long barcode, int mask){
+        long h = barcode * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // 16 hex digits -> long; EMPTY (never a barcode) for anything else
+    static long parse(String barCode){
+        if (barCode == null || barCode.length() != 16) {
+            return EMPTY;
+        }
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit(barCode.charAt(i), 16);
+            if (digit < 0) {
+                return EMPTY;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
+
+// Swipes per second against a RoomKeyService: threads validate random barcodes (mostly keys that
+// open the door, some revoked, expired, wrong-room or made-up ones) for a while, after a warmup
+// round. printed: throughput, and CPU time per validation (per thread, so it doesn't depend on how
+// many cores the threads had to share)
+// Usage: RoomKeyBenchmark [threads] [seconds] [rooms]
+class RoomKeyBenchmark{
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int roomCount = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        RoomKeyService service = new RoomKeyService(roomCount);
+        Room[] rooms = new Room[roomCount];
+        List<String> barcodes = new ArrayList<>();
+        List<Room> doors = new ArrayList<>();
+        for (int i = 0; i < roomCount; i++) {
+            rooms[i] = new Room();
+            rooms[i].roomNumber = "R" + i;
+            for (int k = 0; k < 2; k++) {
+                barcodes.add(service.issue(rooms[i], 24 * 3600 * 1000L).barCode);
+                doors.add(rooms[i]);
+            }
+        }
+        // a tenth of the rooms checked out, a few keys expired, and swipes at the wrong door
+        for (int i = 0; i < roomCount; i += 10) {
+            service.revokeAll(rooms[i]);
+        }
+        for (int i = 0; i < roomCount / 10; i++) {
+            barcodes.add(service.issue(rooms[i], -1).barCode);
+            doors.add(rooms[i]);
+            barcodes.add(barcodes.get(i));
+            doors.add(rooms[(i + 1) % roomCount]);
+            barcodes.add(String.format("%016x", i + 12345L));
+            doors.add(rooms[i]);
+        }
+        String[] swipes = barcodes.toArray(new String[0]);
+        Room[] swipedDoors = doors.toArray(new Room[0]);
+        ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        long[] validations = new long[threads];
+        long[] opened = new long[threads];
+        long[] cpuNanos = new long[threads];
+        for (int round = 0; round < 2; round++) {
+            long deadline = System.nanoTime() + (long) (seconds * 1e9);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers[t] = new Thread(() -> {
+                    SplittableRandom pick = new SplittableRandom(thread);
+                    long started = cpu.getCurrentThreadCpuTime();
+                    long count = 0;
+                    long open = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        int i = pick.nextInt(swipes.length);
+                        if (service.validate(swipes[i], swipedDoors[i])) {
+                            open++;
+                        }
+                        count++;
+                    }
+                    cpuNanos[thread] = cpu.getCurrentThreadCpuTime() - started;
+                    validations[thread] = count;
+                    opened[thread] = open;
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        long total = Arrays.stream(validations).sum();
+        System.out.printf("%d threads, %d keys: %.0f validations/sec, %.0f ns CPU per validation, %.1f%% opened%n",
+                threads, service.getKeyCount(), total / seconds, (double) Arrays.stream(cpuNanos).sum() / total,
+                100.0 * Arrays.stream(opened).sum() / total);
+    }
+}
+
 class HouseKeepingLog{
     String description;
     Date startDate;
     int duration;
-    HouseKeeper houseKeeper;
+    houseKeeper houseKeeper;
 
     public void addRom(Room room);
 }
@@ -93,7 +425,11 @@ public enum AccountStatus{
 // all the classes for our actors: they all will exxtend the person base class
 
 class houseKeeper extends person{
-    public List<Room> public getRoomsServiced(Date date);
+    HousekeepingScheduler scheduler;
+
+    public List<Room> getRoomsServiced(Date date){
+        return scheduler.getRoomsServiced(this, date);
+    }
 }
 
 class Guest extends person{
@@ -106,8 +442,13 @@ class Receptionist extends person{
     Booking bookingObj;
     Search searchObj;
 
-    public void checkIn(Guest guest, RoomBooking bookingInfo);
-    public void checkOut(Guest guest, RoomBooking bookingInfo);
+    public void checkIn(Guest guest, RoomBooking bookingInfo){
+        bookingObj.checkIn(bookingInfo);
+    }
+
+    public void checkOut(Guest guest, RoomBooking bookingInfo){
+        bookingObj.checkOut(bookingInfo);
+    }
 }
 
 class admin extends person{
@@ -117,12 +458,1892 @@ class admin extends person{
 }
 
 class search{
-    public List searchRoom(RoomStyle roomStyle, Date startDate, int duration)
+    AvailabilityIndex availability;
+
+    public search(AvailabilityIndex availability){
+        this.availability = availability;
+    }
+
+    public List<Room> searchRoom(RoomStyle roomStyle, Date startDate, int duration){
+        return availability.findFreeRooms(roomStyle, startDate, duration);
+    }
 }
 
+// Availability index: one bitset per room style per night, a set bit = that room is booked that night
+// each room gets a slot (bit position) in its style when it is added
+//
+//   night 2024-05-01  DELUXE: 0110...   (rooms in slots 1 and 2 are booked)
+//   night 2024-05-02  DELUXE: 0100...
+//   free for both nights    = inService & ~(0110 | 0100) = 1001...
+//
+// so a search for d nights over r rooms reads d * r/64 longs (14 nights, 4096 rooms -> 896 longs)
+// no matter how many bookings exist. nights nobody booked have no bitset at all
+//
+// bits are set and cleared with CAS (AtomicLongArray), so searches never lock and two bookings
+// can never both take the same room for the same night
+class AvailabilityIndex{
+    // bits per style, fixed up front so night bitsets never have to grow under concurrent bookings
+    private final int maxRoomsPerStyle;
+    private final int words;
+    private final Map<RoomStyle, StyleCalendar> calendars = new EnumMap<>(RoomStyle.class);
+    // room -> its slot in its style's calendar
+    private final ConcurrentHashMap<Room, Integer> slots = new ConcurrentHashMap<>();
+    // told after every change (see RateCalendar)
+    private final List<AvailabilityListener> listeners = new CopyOnWriteArrayList<>();
+
+    public AvailabilityIndex(int maxRoomsPerStyle){
+        this.maxRoomsPerStyle = maxRoomsPerStyle;
+        this.words = (maxRoomsPerStyle + 63) / 64;
+        for (RoomStyle style : RoomStyle.values()) {
+            calendars.put(style, new StyleCalendar(maxRoomsPerStyle, words));
+        }
+    }
+
+    // all the nights of one room style
+    static class StyleCalendar{
+        // slot -> room
+        final AtomicReferenceArray<Room> rooms;
+        // slots of rooms that can be booked (cleared when a room is removed)
+        final AtomicLongArray inService;
+        final AtomicInteger nextSlot = new AtomicInteger();
+        // night (epoch day) -> booked rooms that night
+        final ConcurrentHashMap<Long, AtomicLongArray> nights = new ConcurrentHashMap<>();
+
+        StyleCalendar(int maxRooms, int words){
+            rooms = new AtomicReferenceArray<>(maxRooms);
+            inService = new AtomicLongArray(words);
+        }
+    }
+
+    // a slot is never reused, so a room deleted and added again takes a new one
+    public void addRoom(Room room){
+        StyleCalendar calendar = calendars.get(room.roomStyle);
+        slots.computeIfAbsent(room, r -> {
+            int slot = calendar.nextSlot.getAndIncrement();
+            if (slot >= maxRoomsPerStyle) {
+                throw new IllegalStateException("more than " + maxRoomsPerStyle + " " + room.roomStyle + " rooms");
+            }
+            calendar.rooms.set(slot, room);
+            setBit(calendar.inService, slot);
+            return slot;
+        });
+        for (AvailabilityListener listener : listeners) {
+            listener.roomsChanged(room.roomStyle);
+        }
+    }
+
+    // the room's bookings stay in the bitsets, but it never shows up as free again
+    public void removeRoom(Room room){
+        Integer slot = slots.remove(room);
+        if (slot != null) {
+            clearBit(calendars.get(room.roomStyle).inService, slot);
+            for (AvailabilityListener listener : listeners) {
+                listener.roomsChanged(room.roomStyle);
+            }
+        }
+    }
+
+    // rooms of a style that are free every night of [startDate, startDate + duration)
+    public List<Room> findFreeRooms(RoomStyle roomStyle, Date startDate, int duration){
+        StyleCalendar calendar = calendars.get(roomStyle);
+        long[] free = new long[words];
+        long any = 0;
+        for (int w = 0; w < words; w++) {
+            free[w] = calendar.inService.get(w);
+            any |= free[w];
+        }
+        long first = nightOf(startDate);
+        for (long night = first; night < first + duration && any != 0; night++) {
+            AtomicLongArray booked = calendar.nights.get(night);
+            if (booked == null) {
+                continue;
+            }
+            any = 0;
+            for (int w = 0; w < words; w++) {
+                free[w] &= ~booked.get(w);
+                any |= free[w];
+            }
+        }
+        List<Room> result = new ArrayList<>();
+        for (int w = 0; w < words; w++) {
+            for (long bits = free[w]; bits != 0; bits &= bits - 1) {
+                result.add(calendar.rooms.get(w * 64 + Long.numberOfTrailingZeros(bits)));
+            }
+        }
+        return result;
+    }
+
+    public boolean isFree(Room room, Date startDate, int duration){
+        Integer slot = slots.get(room);
+        if (slot == null) {
+            return false;
+        }
+        StyleCalendar calendar = calendars.get(room.roomStyle);
+        long first = nightOf(startDate);
+        for (long night = first; night < first + duration; night++) {
+            AtomicLongArray booked = calendar.nights.get(night);
+            if (booked != null && isSet(booked, slot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // book every night of the stay for one room, or none of them if some night is taken already
+    public boolean reserve(Room room, Date startDate, int duration){
+        Integer slot = slots.get(room);
+        if (slot == null) {
+            return false;
+        }
+        StyleCalendar calendar = calendars.get(room.roomStyle);
+        long first = nightOf(startDate);
+        for (long night = first; night < first + duration; night++) {
+            AtomicLongArray booked = calendar.nights.computeIfAbsent(night, n -> new AtomicLongArray(words));
+            if (!setBit(booked, slot)) {
+                // undo the nights taken so far (nobody was told about them)
+                clearNights(calendar, slot, first, (int) (night - first));
+                return false;
+            }
+        }
+        for (AvailabilityListener listener : listeners) {
+            listener.nightsChanged(room, first, duration);
+        }
+        return true;
+    }
+
+    public void release(Room room, Date startDate, int duration){
+        Integer slot = slots.get(room);
+        if (slot == null) {
+            return;
+        }
+        long first = nightOf(startDate);
+        clearNights(calendars.get(room.roomStyle), slot, first, duration);
+        for (AvailabilityListener listener : listeners) {
+            listener.nightsChanged(room, first, duration);
+        }
+    }
+
+    private void clearNights(StyleCalendar calendar, int slot, long first, int duration){
+        for (long night = first; night < first + duration; night++) {
+            AtomicLongArray booked = calendar.nights.get(night);
+            if (booked != null) {
+                clearBit(booked, slot);
+            }
+        }
+    }
+
+    public void addListener(AvailabilityListener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(AvailabilityListener listener){
+        listeners.remove(listener);
+    }
+
+    // rooms of a style that can be booked at all, as bits by slot
+    int slotCount(RoomStyle roomStyle){
+        return Math.min(calendars.get(roomStyle).nextSlot.get(), maxRoomsPerStyle);
+    }
+
+    Room roomAt(RoomStyle roomStyle, int slot){
+        return calendars.get(roomStyle).rooms.get(slot);
+    }
+
+    Integer slotOf(Room room){
+        return slots.get(room);
+    }
+
+    int words(){
+        return words;
+    }
+
+    // first night from fromNight on (looking horizon nights ahead) that the room is booked; -1 if none
+    long nextBookedNight(Room room, long fromNight, int horizon){
+        Integer slot = slots.get(room);
+        if (slot == null) {
+            return -1;
+        }
+        StyleCalendar calendar = calendars.get(room.roomStyle);
+        for (long night = fromNight; night < fromNight + horizon; night++) {
+            AtomicLongArray booked = calendar.nights.get(night);
+            if (booked != null && isSet(booked, slot)) {
+                return night;
+            }
+        }
+        return -1;
+    }
+
+    // free rooms of a style on one night, as bits by slot
+    void freeSlots(RoomStyle roomStyle, long night, long[] into){
+        StyleCalendar calendar = calendars.get(roomStyle);
+        AtomicLongArray booked = calendar.nights.get(night);
+        for (int w = 0; w < words; w++) {
+            into[w] = calendar.inService.get(w) & (booked == null ? -1L : ~booked.get(w));
+        }
+    }
+
+    // drop the bitsets of nights before a date (past nights are never searched again)
+    public void forgetBefore(Date date){
+        long cutoff = nightOf(date);
+        for (StyleCalendar calendar : calendars.values()) {
+            calendar.nights.keySet().removeIf(night -> night < cutoff);
+        }
+    }
+
+    // nights are calendar days in the hotel's time zone
+    static long nightOf(Date date){
+        return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    // true if this call set the bit, false if it was set already
+    private static boolean setBit(AtomicLongArray bits, int slot){
+        int w = slot >>> 6;
+        long mask = 1L << slot;
+        while (true) {
+            long current = bits.get(w);
+            if ((current & mask) != 0) {
+                return false;
+            }
+            if (bits.compareAndSet(w, current, current | mask)) {
+                return true;
+            }
+        }
+    }
+
+    private static void clearBit(AtomicLongArray bits, int slot){
+        int w = slot >>> 6;
+        long mask = 1L << slot;
+        long current;
+        do {
+            current = bits.get(w);
+        } while ((current & mask) != 0 && !bits.compareAndSet(w, current, current & ~mask));
+    }
+
+    private static boolean isSet(AtomicLongArray bits, int slot){
+        return (bits.get(slot >>> 6) & (1L << slot)) != 0;
+    }
+}
+
+// told by an AvailabilityIndex after it changed; called on the thread that made the change
+interface AvailabilityListener{
+    // a room's nights [firstNight, firstNight + nights) were booked or released (nights are epoch days)
+    void nightsChanged(Room room, long firstNight, int nights);
+
+    // a room of this style was added or removed
+    void roomsChanged(RoomStyle roomStyle);
+}
+
+// Availability and rate calendar of one hotel, for channel managers: for every room style and every
+// night of a window, how many rooms are free and the lowest price among them
+//
+//               night 0   night 1   night 2 ...
+//   STANDARD    12 / 80   11 / 80    3 / 95        free rooms / lowest price (cents in the arrays)
+//   DELUXE       4 / 140   4 / 140   0 / -
+//
+// kept in two primitive arrays indexed [style * days + day], so a 365-night calendar of 3 styles
+// is two arrays of 1095 entries. building it reads each night's bitset once per style (see
+// AvailabilityIndex): bitCount gives the free rooms, and walking the style's rooms in price order
+// until a free one gives the lowest price, usually after a room or two
+//
+// after that the calendar listens to the index: a booking or cancellation recomputes only the
+// cells of its nights, from the bitsets as they are then, so a cell is right once the last change
+// to it has been applied, whatever order concurrent changes are applied in. a change of
+// Room.bookingPrice isn't seen until refresh()
+class RateCalendar implements AvailabilityListener{
+    public static final long NO_PRICE = -1;
+    private static final RoomStyle[] STYLES = RoomStyle.values();
+
+    private final AvailabilityIndex availability;
+    private final long firstNight;
+    private final int days;
+    // [style * days + day]; guarded by this
+    private final int[] freeRooms;
+    private final long[] lowestPrices;
+    // per style: slots in ascending price order, and the price (cents) of each of them
+    private final int[][] slotsByPrice = new int[STYLES.length][];
+    private final long[][] prices = new long[STYLES.length][];
+    // scratch bitset for computing a cell; guarded by this
+    private final long[] free;
+
+    public RateCalendar(AvailabilityIndex availability, Date from, int days){
+        this.availability = availability;
+        this.firstNight = AvailabilityIndex.nightOf(from);
+        this.days = days;
+        this.freeRooms = new int[STYLES.length * days];
+        this.lowestPrices = new long[STYLES.length * days];
+        this.free = new long[availability.words()];
+        availability.addListener(this);
+        refresh();
+    }
+
+    // calendars of many hotels at once, one fork-join task per hotel (parallel streams split the
+    // list over the common ForkJoinPool); the calendars stay up to date from then on
+    public static List<RateCalendar> forHotels(List<Hotel> hotels, Date from, int days){
+        return hotels.parallelStream()
+                .map(hotel -> new RateCalendar(hotel.availability, from, days))
+                .collect(Collectors.toList());
+    }
+
+    // recompute everything, e.g. after room prices changed
+    public synchronized void refresh(){
+        for (RoomStyle style : STYLES) {
+            rebuild(style);
+        }
+    }
+
+    private void rebuild(RoomStyle style){
+        int count = availability.slotCount(style);
+        Integer[] order = new Integer[count];
+        long[] price = new long[count];
+        for (int slot = 0; slot < count; slot++) {
+            Room room = availability.roomAt(style, slot);
+            order[slot] = slot;
+            price[slot] = room == null || room.bookingPrice == null ? Long.MAX_VALUE : ChargeLedger.toCents(room.bookingPrice);
+        }
+        Arrays.sort(order, Comparator.comparingLong(slot -> price[slot]));
+        slotsByPrice[style.ordinal()] = Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+        prices[style.ordinal()] = price;
+        for (int day = 0; day < days; day++) {
+            compute(style, day);
+        }
+    }
+
+    // one cell from the bitsets as they are now
+    private void compute(RoomStyle style, int day){
+        int[] order = slotsByPrice[style.ordinal()];
+        // a change that came in while the constructor was still registering; refresh() covers it
+        if (order == null) {
+            return;
+        }
+        availability.freeSlots(style, firstNight + day, free);
+        int count = 0;
+        for (long bits : free) {
+            count += Long.bitCount(bits);
+        }
+        long lowest = NO_PRICE;
+        for (int i = 0; i < order.length && count > 0; i++) {
+            int slot = order[i];
+            if ((free[slot >>> 6] & (1L << slot)) != 0) {
+                long price = prices[style.ordinal()][slot];
+                lowest = price == Long.MAX_VALUE ? NO_PRICE : price;
+                break;
+            }
+        }
+        freeRooms[style.ordinal() * days + day] = count;
+        lowestPrices[style.ordinal() * days + day] = lowest;
+    }
+
+    @Override
+    public synchronized void nightsChanged(Room room, long first, int nights){
+        int from = (int) Math.max(0, first - firstNight);
+        int to = (int) Math.min(days, first + nights - firstNight);
+        for (int day = from; day < to; day++) {
+            compute(room.roomStyle, day);
+        }
+    }
+
+    @Override
+    public synchronized void roomsChanged(RoomStyle style){
+        rebuild(style);
+    }
+
+    // stop following the index
+    public void close(){
+        availability.removeListener(this);
+    }
+
+    public synchronized int getFreeRooms(RoomStyle style, Date night){
+        int day = dayOf(night);
+        return day < 0 ? 0 : freeRooms[style.ordinal() * days + day];
+    }
+
+    // lowest price (cents) of the free rooms that night, NO_PRICE if none is free
+    public synchronized long getLowestPrice(RoomStyle style, Date night){
+        int day = dayOf(night);
+        return day < 0 ? NO_PRICE : lowestPrices[style.ordinal() * days + day];
+    }
+
+    // the whole matrix, [style * days + day], copied at one moment
+    public synchronized int[] copyFreeRooms(){
+        return freeRooms.clone();
+    }
+
+    public synchronized long[] copyLowestPrices(){
+        return lowestPrices.clone();
+    }
+
+    public int getDays(){
+        return days;
+    }
+
+    // false only if some night of the stay has no free room of the style at all; nights outside
+    // the window can't be ruled out. a true still needs one room free for every night
+    public synchronized boolean mightHaveRoom(RoomStyle style, Date startDate, int nights){
+        long first = AvailabilityIndex.nightOf(startDate) - firstNight;
+        for (long day = Math.max(0, first); day < Math.min(days, first + nights); day++) {
+            if (freeRooms[style.ordinal() * days + (int) day] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -1 outside the window
+    private int dayOf(Date night){
+        long day = AvailabilityIndex.nightOf(night) - firstNight;
+        return day < 0 || day >= days ? -1 : (int) day;
+    }
+}
+
+// Search over many hotels: "a FAMILY_SUITE for 3 nights from D in city X"
+// inverted indexes map each city, state, country and pin code to the set of hotels there (bits by
+// hotel number), so the location part of a query is a few BitSet ANDs:
+//
+//   city "pune"        0110 0100
+//   country "india"    1111 0110
+//   both               0110 0100   -> hotels 1, 2 and 5
+//
+// each hotel's RateCalendar then rules out hotels where some night has no free room of the style
+// at all, and only the hotels left are searched room by room. results come as a lazy stream in
+// hotel number order, so a page of results only searches the hotels it needs; the cursor of a page
+// is the hotel number to go on from
+class HotelDirectory{
+    private final Date calendarStart;
+    private final int calendarDays;
+    // hotel number -> hotel and its calendar (null once removed); replaced on every change
+    private volatile HotelEntry[] entries = new HotelEntry[0];
+    // location value (lower case) -> hotels there; each BitSet is replaced, never changed
+    private final Map<String, BitSet> byCity = new ConcurrentHashMap<>();
+    private final Map<String, BitSet> byState = new ConcurrentHashMap<>();
+    private final Map<String, BitSet> byCountry = new ConcurrentHashMap<>();
+    private final Map<Integer, BitSet> byPinCode = new ConcurrentHashMap<>();
+
+    static class HotelEntry{
+        final Hotel hotel;
+        final RateCalendar calendar;
+
+        HotelEntry(Hotel hotel, RateCalendar calendar){
+            this.hotel = hotel;
+            this.calendar = calendar;
+        }
+    }
+
+    // the calendars used for pruning cover [calendarStart, calendarStart + calendarDays)
+    public HotelDirectory(Date calendarStart, int calendarDays){
+        this.calendarStart = calendarStart;
+        this.calendarDays = calendarDays;
+    }
+
+    // returns the hotel's number
+    public synchronized int addHotel(Hotel hotel){
+        int number = entries.length;
+        HotelEntry[] grown = Arrays.copyOf(entries, number + 1);
+        grown[number] = new HotelEntry(hotel, new RateCalendar(hotel.availability, calendarStart, calendarDays));
+        Location location = hotel.hotelLocation;
+        if (location != null) {
+            add(byCity, key(location.city), number);
+            add(byState, key(location.state), number);
+            add(byCountry, key(location.country), number);
+            if (location.pinCode != 0) {
+                add(byPinCode, location.pinCode, number);
+            }
+        }
+        entries = grown;
+        return number;
+    }
+
+    // a hotel whose hotelLocation changed is removed and added again, under a new number
+    public synchronized void removeHotel(int number){
+        HotelEntry entry = entries[number];
+        if (entry == null) {
+            return;
+        }
+        HotelEntry[] copy = entries.clone();
+        copy[number] = null;
+        entries = copy;
+        entry.calendar.close();
+        for (Map<?, BitSet> index : List.of(byCity, byState, byCountry, byPinCode)) {
+            index.replaceAll((value, hotels) -> {
+                if (!hotels.get(number)) {
+                    return hotels;
+                }
+                BitSet updated = (BitSet) hotels.clone();
+                updated.clear(number);
+                return updated;
+            });
+        }
+    }
+
+    public static class HotelQuery{
+        // null (or 0 for pinCode) = any
+        String city;
+        String state;
+        String country;
+        int pinCode;
+        RoomStyle roomStyle;
+        Date startDate;
+        int nights;
+    }
+
+    public static class HotelMatch{
+        final int hotelNumber;
+        final Hotel hotel;
+        final List<Room> freeRooms;
+
+        HotelMatch(int hotelNumber, Hotel hotel, List<Room> freeRooms){
+            this.hotelNumber = hotelNumber;
+            this.hotel = hotel;
+            this.freeRooms = freeRooms;
+        }
+    }
+
+    public static class HotelPage{
+        final List<HotelMatch> matches;
+        // pass to the next page call; -1 when there are no more hotels
+        final int nextCursor;
+
+        HotelPage(List<HotelMatch> matches, int nextCursor){
+            this.matches = matches;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    // hotels that have a free room of the style for the whole stay, from hotel number cursor on
+    public Stream<HotelMatch> search(HotelQuery query, int cursor){
+        HotelEntry[] snapshot = entries;
+        BitSet candidates = locate(query, snapshot.length);
+        return IntStream.iterate(candidates.nextSetBit(cursor), number -> number >= 0,
+                        number -> candidates.nextSetBit(number + 1))
+                .filter(number -> snapshot[number] != null
+                        && snapshot[number].calendar.mightHaveRoom(query.roomStyle, query.startDate, query.nights))
+                .mapToObj(number -> new HotelMatch(number, snapshot[number].hotel,
+                        snapshot[number].hotel.availability.findFreeRooms(query.roomStyle, query.startDate, query.nights)))
+                .filter(match -> !match.freeRooms.isEmpty());
+    }
+
+    public HotelPage page(HotelQuery query, int cursor, int pageSize){
+        List<HotelMatch> matches = search(query, Math.max(0, cursor)).limit(pageSize + 1).collect(Collectors.toList());
+        if (matches.size() <= pageSize) {
+            return new HotelPage(matches, -1);
+        }
+        return new HotelPage(matches.subList(0, pageSize), matches.get(pageSize).hotelNumber);
+    }
+
+    // hotels matching the location part of the query
+    private BitSet locate(HotelQuery query, int hotels){
+        BitSet result = new BitSet(hotels);
+        result.set(0, hotels);
+        and(result, byCity, key(query.city));
+        and(result, byState, key(query.state));
+        and(result, byCountry, key(query.country));
+        and(result, byPinCode, query.pinCode == 0 ? null : query.pinCode);
+        return result;
+    }
+
+    private static <K> void and(BitSet result, Map<K, BitSet> index, K value){
+        if (value == null) {
+            return;
+        }
+        BitSet hotels = index.get(value);
+        if (hotels == null) {
+            result.clear();
+        } else {
+            result.and(hotels);
+        }
+    }
+
+    private static <K> void add(Map<K, BitSet> index, K value, int number){
+        if (value == null) {
+            return;
+        }
+        BitSet hotels = index.getOrDefault(value, new BitSet());
+        BitSet updated = (BitSet) hotels.clone();
+        updated.set(number);
+        index.put(value, updated);
+    }
+
+    // "  Pune " and "pune" are the same city
+    private static String key(String value){
+        return value == null || value.isBlank() ? null : value.trim().toLowerCase(Locale.ROOT);
+    }
+}
+
+// Booking engine: the rooms of a booking are taken all together or not at all
+// nights are taken with CAS in the AvailabilityIndex, so two bookings can never hold the same room
+// for the same night. on top of that a booking locks the stripes of its rooms (in stripe order, so
+// two bookings can't deadlock) while it takes them, which keeps bookings that share a room from
+// seeing each other half done; bookings of different rooms almost never share a stripe.
+// there is no global lock anywhere
+//
+// roomStatus is the state of the room today (set at check-in/out); future nights live in the index
+//
+// with a HotelJournal every change is journaled before the call returns (see HotelJournal), and
+// journaled before it is applied: if the journal refuses the record (closed, full disk, record
+// too big) the call throws and nothing changes, so nothing is visible that a restart would lose
 class Booking{
-    public RoomBooking createBooking(Guest guestInfo);
-    public RoomBooking cancelBooking(int BookingId);
+    private static final int LOCK_STRIPES = 256;
+
+    AvailabilityIndex availability;
+    // null: the bookings live in memory only
+    HotelJournal journal;
+    // bookingId -> live booking
+    private final ConcurrentHashMap<String, RoomBooking> bookings = new ConcurrentHashMap<>();
+    private final AtomicInteger nextBookingId = new AtomicInteger();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    // told after every check-out (see HousekeepingScheduler)
+    private final List<Consumer<RoomBooking>> checkOutListeners = new CopyOnWriteArrayList<>();
+
+    public Booking(AvailabilityIndex availability){
+        this(availability, null);
+    }
+
+    public Booking(AvailabilityIndex availability, HotelJournal journal){
+        this.availability = availability;
+        this.journal = journal;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    // null if one of the rooms isn't free for the whole stay (then none of them is booked)
+    public RoomBooking createBooking(Guest guestInfo, List<Room> rooms, Date startDate, int durationInDays){
+        if (rooms.isEmpty() || durationInDays <= 0 || new HashSet<>(rooms).size() != rooms.size()) {
+            return null;
+        }
+        RoomBooking booking;
+        long journaled = 0;
+        beginChange();
+        int[] locked = lockRooms(rooms);
+        try {
+            if (!reserveAll(rooms, startDate, durationInDays)) {
+                return null;
+            }
+            booking = new RoomBooking();
+            booking.bookingId = Integer.toString(nextBookingId.incrementAndGet());
+            booking.startDate = startDate;
+            booking.durationInDays = durationInDays;
+            booking.guestList = List.of(guestInfo);
+            booking.roomInfo = List.copyOf(rooms);
+            booking.totalRoomCharges = ChargeLedger.forStay(rooms, durationInDays);
+            if (journal != null) {
+                try {
+                    journaled = journal.booked(booking);
+                } catch (RuntimeException e) {
+                    // not journaled, so it must not exist: give the nights back
+                    releaseAll(booking);
+                    throw e;
+                }
+            }
+            bookings.put(booking.bookingId, booking);
+        } finally {
+            unlockRooms(locked);
+            endChange();
+        }
+        awaitDurable(journaled);
+        return booking;
+    }
+
+    // the cancelled booking, or null if there is no such (live) booking
+    // only one of two concurrent cancels gets the booking, so its nights are released once
+    public RoomBooking cancelBooking(int bookingId){
+        RoomBooking booking = bookings.get(Integer.toString(bookingId));
+        if (booking == null) {
+            return null;
+        }
+        long journaled = 0;
+        beginChange();
+        int[] locked = lockRooms(booking.roomInfo);
+        try {
+            if (bookings.get(booking.bookingId) != booking) {
+                return null;
+            }
+            if (journal != null) {
+                journaled = journal.cancelled(booking.bookingId);
+            }
+            bookings.remove(booking.bookingId, booking);
+            releaseAll(booking);
+        } finally {
+            unlockRooms(locked);
+            endChange();
+        }
+        awaitDurable(journaled);
+        return booking;
+    }
+
+    public void checkIn(RoomBooking booking){
+        changeStatus(booking.roomInfo, RoomStatus.OCCUPIED, HotelJournal.CHECKED_IN, booking.bookingId);
+    }
+
+    // the rooms can't be let again until housekeeping has cleaned them (logHousekeeping)
+    public void checkOut(RoomBooking booking){
+        changeStatus(booking.roomInfo, RoomStatus.NOT_AVAILABLE, HotelJournal.CHECKED_OUT, booking.bookingId);
+        for (Consumer<RoomBooking> listener : checkOutListeners) {
+            listener.accept(booking);
+        }
+    }
+
+    public void addCheckOutListener(Consumer<RoomBooking> listener){
+        checkOutListeners.add(listener);
+    }
+
+    public void setRoomStatus(Room room, RoomStatus status){
+        changeStatus(List.of(room), status, HotelJournal.ROOM_STATUS, room.roomNumber);
+    }
+
+    private void changeStatus(List<Room> rooms, RoomStatus status, byte event, String key){
+        long journaled = 0;
+        beginChange();
+        int[] locked = lockRooms(rooms);
+        try {
+            if (journal != null) {
+                journaled = event == HotelJournal.ROOM_STATUS
+                        ? journal.roomStatus(key, status) : journal.stayChanged(event, key);
+            }
+            for (Room room : rooms) {
+                room.roomStatus = status;
+            }
+        } finally {
+            unlockRooms(locked);
+            endChange();
+        }
+        awaitDurable(journaled);
+    }
+
+    // false if there is no such (live) booking
+    // holds the booking's room locks, so a charge and a cancel of the same booking are journaled
+    // in the order they happened
+    public boolean postCharge(int bookingId, ChargeType type, long cents, String description){
+        RoomBooking booking = bookings.get(Integer.toString(bookingId));
+        if (booking == null) {
+            return false;
+        }
+        long journaled = 0;
+        beginChange();
+        int[] locked = lockRooms(booking.roomInfo);
+        try {
+            if (bookings.get(booking.bookingId) != booking) {
+                return false;
+            }
+            if (journal != null) {
+                journaled = journal.charged(booking.bookingId, type, cents, description);
+            }
+            booking.totalRoomCharges.post(type, cents, description);
+        } finally {
+            unlockRooms(locked);
+            endChange();
+        }
+        awaitDurable(journaled);
+        return true;
+    }
+
+    // a cleaned room can be let again
+    public void logHousekeeping(Room room, HouseKeepingLog log){
+        long journaled = 0;
+        beginChange();
+        int[] locked = lockRooms(List.of(room));
+        try {
+            if (journal != null) {
+                journaled = journal.housekeeping(room.roomNumber, log);
+            }
+            synchronized (room) {
+                room.houseKeepingLogs.add(log);
+            }
+            room.roomStatus = RoomStatus.AVAILABLE;
+        } finally {
+            unlockRooms(locked);
+            endChange();
+        }
+        awaitDurable(journaled);
+    }
+
+    public RoomBooking getBooking(int bookingId){
+        return bookings.get(Integer.toString(bookingId));
+    }
+
+    public Collection<RoomBooking> getBookings(){
+        return bookings.values();
+    }
+
+    int getLastBookingId(){
+        return nextBookingId.get();
+    }
+
+    // replay: put back a booking from the journal or a snapshot, keeping its id
+    void restoreBooking(RoomBooking booking){
+        if (bookings.containsKey(booking.bookingId) || !reserveAll(booking.roomInfo, booking.startDate, booking.durationInDays)) {
+            throw new IllegalStateException("can't restore booking " + booking.bookingId);
+        }
+        bookings.put(booking.bookingId, booking);
+        nextBookingId.accumulateAndGet(Integer.parseInt(booking.bookingId), Math::max);
+    }
+
+    void restoreCancel(String bookingId){
+        RoomBooking booking = bookings.remove(bookingId);
+        if (booking != null) {
+            releaseAll(booking);
+        }
+    }
+
+    void restoreLastBookingId(int bookingId){
+        nextBookingId.accumulateAndGet(bookingId, Math::max);
+    }
+
+    // every change to a room happens, and is journaled, while holding the room's stripe lock, so
+    // the journal has the changes to a room in the order they were made (a cancel before the
+    // booking that took the freed nights) and replays them the same way
+    private int[] lockRooms(List<Room> rooms){
+        int[] lockOrder = stripesOf(rooms);
+        for (int stripe : lockOrder) {
+            stripes[stripe].lock();
+        }
+        return lockOrder;
+    }
+
+    private void unlockRooms(int[] lockOrder){
+        for (int i = lockOrder.length - 1; i >= 0; i--) {
+            stripes[lockOrder[i]].unlock();
+        }
+    }
+
+    // the caller holds the rooms' locks (replay runs alone)
+    private boolean reserveAll(List<Room> rooms, Date startDate, int durationInDays){
+        for (int i = 0; i < rooms.size(); i++) {
+            if (!availability.reserve(rooms.get(i), startDate, durationInDays)) {
+                // give back the rooms taken so far
+                for (int j = 0; j < i; j++) {
+                    availability.release(rooms.get(j), startDate, durationInDays);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseAll(RoomBooking booking){
+        for (Room room : booking.roomInfo) {
+            availability.release(room, booking.startDate, booking.durationInDays);
+        }
+    }
+
+    // sorted, distinct lock stripes of the rooms
+    private static int[] stripesOf(List<Room> rooms){
+        return rooms.stream()
+                .mapToInt(room -> Math.floorMod(room.roomNumber.hashCode(), LOCK_STRIPES))
+                .sorted().distinct().toArray();
+    }
+
+    private void beginChange(){
+        if (journal != null) {
+            journal.beginChange();
+        }
+    }
+
+    private void endChange(){
+        if (journal != null) {
+            journal.endChange();
+        }
+    }
+
+    private void awaitDurable(long journaled){
+        if (journal != null) {
+            journal.awaitDurable(journaled);
+        }
+    }
+}
+
+// Contention check for the booking engine: threads book random 1-3 room stays out of a few rooms
+// (so many attempts collide) and cancel their older bookings, then every room night of the live
+// bookings is counted; a night held by two bookings would be a double booking
+// Usage: BookingStressRun [threads] [seconds]
+class BookingStressRun{
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        AvailabilityIndex availability = new AvailabilityIndex(64);
+        List<Room> rooms = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Room room = new Room();
+            room.roomNumber = "S" + i;
+            room.roomStyle = RoomStyle.STANDARD;
+            rooms.add(room);
+            availability.addRoom(room);
+        }
+        Booking engine = new Booking(availability);
+        Date today = new Date();
+        long dayMillis = 24 * 60 * 60 * 1000L;
+        AtomicLong booked = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                ArrayDeque<RoomBooking> kept = new ArrayDeque<>();
+                while (System.nanoTime() < deadline) {
+                    List<Room> stay = new ArrayList<>(rooms);
+                    Collections.shuffle(stay, new Random(random.nextLong()));
+                    stay = stay.subList(0, 1 + random.nextInt(3));
+                    Date start = new Date(today.getTime() + random.nextInt(60) * dayMillis);
+                    RoomBooking booking = engine.createBooking(new Guest(), stay, start, 1 + random.nextInt(5));
+                    if (booking == null) {
+                        rejected.incrementAndGet();
+                        continue;
+                    }
+                    booked.incrementAndGet();
+                    // keep the calendar from filling up: a thread holds at most 4 bookings
+                    kept.add(booking);
+                    if (kept.size() > 4) {
+                        engine.cancelBooking(Integer.parseInt(kept.poll().bookingId));
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Map<String, String> nights = new HashMap<>();
+        int doubleBooked = 0;
+        for (RoomBooking booking : engine.getBookings()) {
+            for (Room room : booking.roomInfo) {
+                for (int k = 0; k < booking.durationInDays; k++) {
+                    Date night = new Date(booking.startDate.getTime() + k * dayMillis);
+                    // held by another live booking, or not marked booked in the index
+                    if (nights.put(room.roomNumber + "@" + AvailabilityIndex.nightOf(night), booking.bookingId) != null
+                            || availability.isFree(room, night, 1)) {
+                        doubleBooked++;
+                    }
+                }
+            }
+        }
+        System.out.printf("%d threads: %.0f bookings/sec, %d rejected, %d live, %d double-booked nights%n",
+                threads, booked.get() / seconds, rejected.get(), engine.getBookings().size(), doubleBooked);
+        if (doubleBooked != 0) {
+            throw new IllegalStateException("double booking");
+        }
+    }
+}
+
+// Journal of every change the Booking engine makes: bookings, cancellations, check-ins and outs,
+// room status changes, charges and housekeeping, as compact binary records in memory-mapped
+// segment files, so the hotel's state survives a restart without a database
+//
+//   journal-0000000001.log   [length][crc32][type, sequence, payload] [length][crc32][...] ... 0 0 0
+//   snapshot-0000001234.bin  the whole state as of record 1234
+//
+// on open the latest snapshot is loaded and the records after it are replayed. a record that is cut
+// short or fails its checksum ends the journal (a crash in the middle of an append)
+//
+// durability is group committed: an append copies its record into the mapped segment and returns
+// its sequence number; a flusher thread forces the segment to disk and then wakes every caller
+// waiting for a record up to the forced one. while one force runs, the next appends pile up and
+// share the next force, so a busy hotel pays for far fewer fsyncs than it journals records
+//
+// snapshots are taken while no change is in flight (changes hold the read side of a lock, a
+// snapshot the write side), so a snapshot and the records after it never overlap. after a snapshot
+// a new segment is started and the older segments and snapshots are deleted
+//
+// guests aren't journaled: Guest has no identity in this sketch
+class HotelJournal implements Closeable{
+    // record types
+    static final byte BOOKED = 1, CANCELLED = 2, CHECKED_IN = 3, CHECKED_OUT = 4, ROOM_STATUS = 5,
+            HOUSEKEEPING = 6, CHARGE = 7;
+
+    private static final int SEGMENT_BYTES = 16 << 20;
+    // length and checksum in front of every record
+    private static final int HEADER_BYTES = 8;
+    private static final int SNAPSHOT_MAGIC = 0x484A534E;
+
+    private final Path directory;
+    private final ReentrantReadWriteLock changes = new ReentrantReadWriteLock();
+
+    // the segment being appended to; guarded by this
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int position;
+    private long lastSequence;
+    private long snapshotSequence;
+    private boolean closed;
+
+    // waiters for durability wait on this monitor, not on the journal, so an append only ever
+    // wakes the flusher
+    private final Object durable = new Object();
+    private volatile long durableSequence;
+    private volatile RuntimeException flushFailure;
+    private Thread flusher;
+    private ScheduledExecutorService snapshots;
+    // why the last scheduled snapshot failed, null once one succeeds again
+    private volatile Exception snapshotFailure;
+
+    interface Payload{
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public HotelJournal(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    // load the latest snapshot and replay the records after it into the engine and the rooms, then
+    // start appending. rooms are not journaled: they come from the hotel's roomList, by roomNumber
+    public void recover(Booking booking, Map<String, Room> rooms) throws IOException {
+        Path snapshot = latest("snapshot-", ".bin");
+        if (snapshot != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+                readSnapshot(in, booking, rooms);
+            }
+        }
+        List<Path> segments = list("journal-", ".log");
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i == segments.size() - 1;
+            openSegment((int) number(segments.get(i)));
+            position = replay(booking, rooms, last);
+            if (!last) {
+                channel.close();
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            // bytes after the last whole record may hold parts of records that never made it: clear
+            // them, or records appended now could be followed by one of them on the next replay
+            int i = position;
+            for (; (i & 7) != 0; i++) {
+                segment.put(i, (byte) 0);
+            }
+            for (; i < SEGMENT_BYTES; i += 8) {
+                segment.putLong(i, 0);
+            }
+        }
+        durableSequence = lastSequence;
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // scan the open segment; returns the offset after its last whole record
+    private int replay(Booking booking, Map<String, Room> rooms, boolean last) throws IOException {
+        int offset = 0;
+        while (offset + HEADER_BYTES <= SEGMENT_BYTES) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > SEGMENT_BYTES - offset - HEADER_BYTES) {
+                break;
+            }
+            byte[] body = new byte[length];
+            segment.get(offset + HEADER_BYTES, body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            long sequence = in.readLong();
+            if (sequence > lastSequence + 1) {
+                break;
+            }
+            // records up to the snapshot are in it already
+            if (sequence == lastSequence + 1) {
+                apply(type, in, booking, rooms);
+                lastSequence = sequence;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        if (!last && offset + HEADER_BYTES <= SEGMENT_BYTES && segment.getInt(offset) != 0) {
+            throw new IOException("journal segment " + segmentNumber + " is damaged at offset " + offset);
+        }
+        return offset;
+    }
+
+    private void apply(byte type, DataInputStream in, Booking booking, Map<String, Room> rooms) throws IOException {
+        switch (type) {
+            case BOOKED:
+                booking.restoreBooking(readBooking(in, rooms));
+                break;
+            case CANCELLED:
+                booking.restoreCancel(in.readUTF());
+                break;
+            case CHECKED_IN:
+            case CHECKED_OUT:
+                RoomBooking stay = booking.getBooking(Integer.parseInt(in.readUTF()));
+                if (stay != null) {
+                    for (Room room : stay.roomInfo) {
+                        room.roomStatus = type == CHECKED_IN ? RoomStatus.OCCUPIED : RoomStatus.NOT_AVAILABLE;
+                    }
+                }
+                break;
+            case ROOM_STATUS:
+                room(rooms, in.readUTF()).roomStatus = RoomStatus.values()[in.readByte()];
+                break;
+            case HOUSEKEEPING:
+                Room cleaned = room(rooms, in.readUTF());
+                cleaned.houseKeepingLogs.add(readHousekeeping(in));
+                cleaned.roomStatus = RoomStatus.AVAILABLE;
+                break;
+            case CHARGE:
+                RoomBooking charged = booking.getBooking(Integer.parseInt(in.readUTF()));
+                ChargeType chargeType = ChargeType.values()[in.readByte()];
+                long cents = in.readLong();
+                String description = in.readUTF();
+                if (charged != null) {
+                    charged.totalRoomCharges.post(chargeType, cents, description);
+                }
+                break;
+            default:
+                throw new IOException("unknown journal record type " + type);
+        }
+    }
+
+    // the Booking engine journals its changes between beginChange and endChange, and waits for
+    // awaitDurable after endChange (waiting inside would hold up snapshots)
+    void beginChange(){
+        changes.readLock().lock();
+    }
+
+    void endChange(){
+        changes.readLock().unlock();
+    }
+
+    long booked(RoomBooking booking){
+        return append(BOOKED, out -> writeBooking(out, booking));
+    }
+
+    long cancelled(String bookingId){
+        return append(CANCELLED, out -> out.writeUTF(bookingId));
+    }
+
+    // CHECKED_IN or CHECKED_OUT
+    long stayChanged(byte type, String bookingId){
+        return append(type, out -> out.writeUTF(bookingId));
+    }
+
+    long roomStatus(String roomNumber, RoomStatus status){
+        return append(ROOM_STATUS, out -> {
+            out.writeUTF(roomNumber);
+            out.writeByte(status.ordinal());
+        });
+    }
+
+    long housekeeping(String roomNumber, HouseKeepingLog log){
+        return append(HOUSEKEEPING, out -> {
+            out.writeUTF(roomNumber);
+            writeHousekeeping(out, log);
+        });
+    }
+
+    long charged(String bookingId, ChargeType type, long cents, String description){
+        return append(CHARGE, out -> {
+            out.writeUTF(bookingId);
+            out.writeByte(type.ordinal());
+            out.writeLong(cents);
+            out.writeUTF(description == null ? "" : description);
+        });
+    }
+
+    // copy a record into the segment; returns its sequence number (see awaitDurable)
+    private long append(byte type, Payload payload){
+        byte[] body;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            // the sequence number, filled in below
+            out.writeLong(0);
+            payload.write(out);
+            body = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (HEADER_BYTES + body.length > SEGMENT_BYTES) {
+            throw new IllegalArgumentException("journal record of " + body.length + " bytes");
+        }
+        synchronized (this) {
+            if (segment == null || closed) {
+                throw new IllegalStateException("journal is not open");
+            }
+            long sequence = lastSequence + 1;
+            ByteBuffer.wrap(body).putLong(1, sequence);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            try {
+                if (position + HEADER_BYTES + body.length > SEGMENT_BYTES) {
+                    roll();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segment.putInt(position + 4, (int) crc.getValue());
+            segment.put(position + HEADER_BYTES, body);
+            // the length goes in last: without it the record isn't there
+            segment.putInt(position, body.length);
+            position += HEADER_BYTES + body.length;
+            lastSequence = sequence;
+            notify();
+            return sequence;
+        }
+    }
+
+    // block until the record with this sequence number (and every one before it) is on disk
+    void awaitDurable(long sequence){
+        if (sequence <= durableSequence) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (durable) {
+            while (durableSequence < sequence) {
+                if (flushFailure != null) {
+                    throw new IllegalStateException("journal can't sync to disk", flushFailure);
+                }
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop(){
+        while (true) {
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                while (lastSequence == durableSequence && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // close() forces what's left
+                if (closed) {
+                    return;
+                }
+                target = lastSequence;
+                buffer = segment;
+            }
+            try {
+                buffer.force();
+            } catch (RuntimeException e) {
+                flushFailure = e;
+                synchronized (durable) {
+                    durable.notifyAll();
+                }
+                return;
+            }
+            synchronized (durable) {
+                durableSequence = target;
+                durable.notifyAll();
+            }
+        }
+    }
+
+    // write the whole state, then start a new segment and drop what the snapshot replaces
+    // the whole write and fsync run under the write side of the changes lock, so every booking
+    // change waits for the snapshot, which grows with the number of bookings. that keeps the
+    // snapshot an exact cut of the journal without copying the state first; take snapshots rarely
+    // enough that the stalls don't matter (snapshotEvery)
+    public void snapshot(Booking booking, Collection<Room> rooms) throws IOException {
+        changes.writeLock().lock();
+        try {
+            long sequence;
+            synchronized (this) {
+                sequence = lastSequence;
+            }
+            Path temp = directory.resolve("snapshot.tmp");
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16));
+                writeSnapshot(out, sequence, booking, rooms);
+                out.flush();
+                file.force(true);
+            }
+            Path snapshot = directory.resolve(name("snapshot-", sequence, ".bin"));
+            Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+            int keepFrom;
+            synchronized (this) {
+                roll();
+                snapshotSequence = sequence;
+                keepFrom = segmentNumber;
+            }
+            for (Path old : list("journal-", ".log")) {
+                if (number(old) < keepFrom) {
+                    Files.delete(old);
+                }
+            }
+            for (Path old : list("snapshot-", ".bin")) {
+                if (!old.equals(snapshot)) {
+                    Files.delete(old);
+                }
+            }
+        } finally {
+            changes.writeLock().unlock();
+        }
+    }
+
+    // take a snapshot every period, when something was journaled since the last one
+    public synchronized void snapshotEvery(long period, TimeUnit unit, Booking booking, Collection<Room> rooms){
+        if (snapshots != null) {
+            snapshots.shutdown();
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a failure is kept for getSnapshotFailure and the next run tries again: an exception
+        // escaping the task would cancel the schedule, and the segments would pile up unnoticed
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                if (getLastSequence() > getSnapshotSequence()) {
+                    snapshot(booking, rooms);
+                }
+                snapshotFailure = null;
+            } catch (IOException | RuntimeException e) {
+                snapshotFailure = e;
+            }
+        }, period, period, unit);
+    }
+
+    // null unless the last scheduled snapshot failed
+    public Exception getSnapshotFailure(){
+        return snapshotFailure;
+    }
+
+    public synchronized long getLastSequence(){
+        return lastSequence;
+    }
+
+    public synchronized long getSnapshotSequence(){
+        return snapshotSequence;
+    }
+
+    public long getDurableSequence(){
+        return durableSequence;
+    }
+
+    // force what's journaled and stop; callers still waiting for durability are released
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService scheduled;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            scheduled = snapshots;
+            notify();
+        }
+        if (scheduled != null) {
+            scheduled.shutdown();
+        }
+        if (flusher != null) {
+            boolean interrupted = false;
+            while (flusher.isAlive()) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (segment != null) {
+                segment.force();
+                channel.close();
+                segment = null;
+            }
+        }
+        synchronized (durable) {
+            durableSequence = lastSequence;
+            durable.notifyAll();
+        }
+    }
+
+    // guarded by this
+    private void roll() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(segmentNumber + 1);
+    }
+
+    private void openSegment(int number) throws IOException {
+        channel = FileChannel.open(directory.resolve(name("journal-", number, ".log")),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        segmentNumber = number;
+        position = 0;
+    }
+
+    // snapshot: magic, sequence, last booking id, every room (status and housekeeping logs), every
+    // live booking (the BOOKED record payload)
+    private static void writeSnapshot(DataOutputStream out, long sequence, Booking booking, Collection<Room> rooms) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(sequence);
+        out.writeInt(booking.getLastBookingId());
+        out.writeInt(rooms.size());
+        for (Room room : rooms) {
+            out.writeUTF(room.roomNumber);
+            out.writeByte(room.roomStatus == null ? -1 : room.roomStatus.ordinal());
+            synchronized (room) {
+                out.writeInt(room.houseKeepingLogs.size());
+                for (HouseKeepingLog log : room.houseKeepingLogs) {
+                    writeHousekeeping(out, log);
+                }
+            }
+        }
+        Collection<RoomBooking> bookings = new ArrayList<>(booking.getBookings());
+        out.writeInt(bookings.size());
+        for (RoomBooking stay : bookings) {
+            writeBooking(out, stay);
+        }
+    }
+
+    private void readSnapshot(DataInputStream in, Booking booking, Map<String, Room> rooms) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("not a journal snapshot");
+        }
+        snapshotSequence = lastSequence = in.readLong();
+        booking.restoreLastBookingId(in.readInt());
+        for (int count = in.readInt(); count > 0; count--) {
+            Room room = room(rooms, in.readUTF());
+            byte status = in.readByte();
+            room.roomStatus = status < 0 ? null : RoomStatus.values()[status];
+            for (int logs = in.readInt(); logs > 0; logs--) {
+                room.houseKeepingLogs.add(readHousekeeping(in));
+            }
+        }
+        for (int count = in.readInt(); count > 0; count--) {
+            booking.restoreBooking(readBooking(in, rooms));
+        }
+    }
+
+    // id, start, nights, room numbers, then the ledger lines (prices can change after booking)
+    private static void writeBooking(DataOutputStream out, RoomBooking booking) throws IOException {
+        out.writeUTF(booking.bookingId);
+        out.writeLong(booking.startDate.getTime());
+        out.writeInt(booking.durationInDays);
+        out.writeInt(booking.roomInfo.size());
+        for (Room room : booking.roomInfo) {
+            out.writeUTF(room.roomNumber);
+        }
+        ChargeLedger ledger = booking.totalRoomCharges;
+        int lines = ledger == null ? 0 : ledger.getLineCount();
+        out.writeInt(lines);
+        for (int line = 0; line < lines; line++) {
+            out.writeByte(ledger.getType(line).ordinal());
+            out.writeLong(ledger.getAmountCents(line));
+            String description = ledger.getDescription(line);
+            out.writeUTF(description == null ? "" : description);
+        }
+    }
+
+    private static RoomBooking readBooking(DataInputStream in, Map<String, Room> rooms) throws IOException {
+        RoomBooking booking = new RoomBooking();
+        booking.bookingId = in.readUTF();
+        booking.startDate = new Date(in.readLong());
+        booking.durationInDays = in.readInt();
+        List<Room> stay = new ArrayList<>();
+        for (int count = in.readInt(); count > 0; count--) {
+            stay.add(room(rooms, in.readUTF()));
+        }
+        booking.roomInfo = List.copyOf(stay);
+        booking.guestList = List.of();
+        booking.totalRoomCharges = new ChargeLedger();
+        for (int lines = in.readInt(); lines > 0; lines--) {
+            ChargeType type = ChargeType.values()[in.readByte()];
+            long cents = in.readLong();
+            booking.totalRoomCharges.post(type, cents, in.readUTF());
+        }
+        return booking;
+    }
+
+    private static void writeHousekeeping(DataOutputStream out, HouseKeepingLog log) throws IOException {
+        out.writeLong(log.startDate == null ? Long.MIN_VALUE : log.startDate.getTime());
+        out.writeInt(log.duration);
+        out.writeUTF(log.description == null ? "" : log.description);
+    }
+
+    private static HouseKeepingLog readHousekeeping(DataInputStream in) throws IOException {
+        HouseKeepingLog log = new HouseKeepingLog();
+        long start = in.readLong();
+        log.startDate = start == Long.MIN_VALUE ? null : new Date(start);
+        log.duration = in.readInt();
+        log.description = in.readUTF();
+        return log;
+    }
+
+    private static Room room(Map<String, Room> rooms, String roomNumber) throws IOException {
+        Room room = rooms.get(roomNumber);
+        if (room == null) {
+            throw new IOException("journal names room " + roomNumber + ", which the hotel doesn't have");
+        }
+        return room;
+    }
+
+    // "journal-", 7, ".log" -> "journal-0000000007.log", so names sort in number order
+    private static String name(String prefix, long number, String suffix){
+        return prefix + String.format("%010d", number) + suffix;
+    }
+
+    private static long number(Path file){
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+    }
+
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(prefix) && name.endsWith(suffix);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path latest(String prefix, String suffix) throws IOException {
+        List<Path> files = list(prefix, suffix);
+        return files.isEmpty() ? null : files.get(files.size() - 1);
+    }
+}
+
+// restart check for the journal: threads cancel and rebook the same few rooms for the same nights,
+// and post charges to bookings that other threads are cancelling, then the journal is closed and
+// replayed into a fresh engine, which has to come back with exactly the same bookings and charges.
+// a cancel journaled after the booking that took its nights would make the replay fail
+class HotelJournalRestartRun{
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Path directory = Files.createTempDirectory("hotel-journal");
+        Date start = new Date(System.currentTimeMillis() + 24 * 60 * 60 * 1000L);
+        Map<String, Room> rooms = rooms();
+        HotelJournal journal = new HotelJournal(directory);
+        Booking engine = open(journal, rooms);
+        for (int round = 0; round < rounds; round++) {
+            Booking current = engine;
+            List<Room> list = new ArrayList<>(rooms.values());
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int seed = round * threads + t;
+                workers[t] = new Thread(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    for (int i = 0; i < 2000; i++) {
+                        Room room = list.get(random.nextInt(list.size()));
+                        for (RoomBooking booking : current.getBookings()) {
+                            if (booking.roomInfo.get(0) == room) {
+                                int id = Integer.parseInt(booking.bookingId);
+                                if (random.nextBoolean()) {
+                                    current.cancelBooking(id);
+                                } else {
+                                    current.postCharge(id, ChargeType.ROOM_SERVICE, 250, "coffee");
+                                }
+                                break;
+                            }
+                        }
+                        current.createBooking(new Guest(), List.of(room), start, 2);
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            String before = state(engine, rooms);
+            journal.close();
+            rooms = rooms();
+            journal = new HotelJournal(directory);
+            engine = open(journal, rooms);
+            if (!before.equals(state(engine, rooms))) {
+                throw new IllegalStateException("round " + round + ": state differs after restart");
+            }
+        }
+        System.out.printf("%d rounds of %d threads: %d records replayed, same state after every restart%n",
+                rounds, threads, journal.getLastSequence());
+        journal.close();
+    }
+
+    private static Map<String, Room> rooms(){
+        Map<String, Room> rooms = new LinkedHashMap<>();
+        for (int i = 0; i < 4; i++) {
+            Room room = new Room();
+            room.roomNumber = "J" + i;
+            room.roomStyle = RoomStyle.STANDARD;
+            room.roomStatus = RoomStatus.AVAILABLE;
+            room.bookingPrice = 100.0;
+            rooms.put(room.roomNumber, room);
+        }
+        return rooms;
+    }
+
+    private static Booking open(HotelJournal journal, Map<String, Room> rooms) throws IOException {
+        AvailabilityIndex availability = new AvailabilityIndex(64);
+        for (Room room : rooms.values()) {
+            availability.addRoom(room);
+        }
+        Booking engine = new Booking(availability, journal);
+        journal.recover(engine, rooms);
+        return engine;
+    }
+
+    private static String state(Booking engine, Map<String, Room> rooms){
+        Map<Integer, String> bookings = new TreeMap<>();
+        for (RoomBooking booking : engine.getBookings()) {
+            bookings.put(Integer.parseInt(booking.bookingId), booking.roomInfo.get(0).roomNumber + " "
+                    + booking.startDate.getTime() + " " + booking.durationInDays + " "
+                    + booking.totalRoomCharges.getTotalCents() + " " + booking.totalRoomCharges.getLineCount());
+        }
+        StringBuilder state = new StringBuilder(bookings.toString());
+        for (Room room : rooms.values()) {
+            state.append(' ').append(room.roomNumber).append(room.roomStatus);
+        }
+        return state.append(' ').append(engine.getLastBookingId()).toString();
+    }
+}
+
+// Housekeeping for one hotel: rooms vacated at check-out wait in a priority queue, most urgent
+// first, and are handed out to housekeepers so that no one has more than a couple of rooms lined up
+//
+//   urgency = the room's next arrival night (from the AvailabilityIndex), then the time it was
+//   vacated; a room with no arrival in sight waits behind every room that has one
+//
+// the scheduler listens to the index: when a waiting room's nights are booked or released, its
+// next arrival is looked up again and the room moves to its new place in the queue
+//
+// handing out: the least loaded housekeeper (fewest rooms assigned and not finished) gets the most
+// urgent room, as long as they have fewer than MAX_OPEN. the rest stays in the queue, so a room
+// whose guests arrive tonight goes to the next housekeeper who gets free instead of to the end of
+// someone's list. queueing (or re-queueing) a room looks up its next arrival, a scan of up to
+// ARRIVAL_HORIZON nights of the room in the AvailabilityIndex; every other step is O(log rooms)
+// (plus O(housekeepers) to re-rank one housekeeper)
+//
+// finished rooms are logged through Booking.logHousekeeping (journaled, room AVAILABLE again) and
+// kept in a per-day index, so getRoomsServiced(date) reads one day's entries
+//
+// the queue itself isn't journaled: a room checked out and not cleaned yet comes back from the
+// journal as NOT_AVAILABLE, and a scheduler built after recovery queues those rooms again
+class HousekeepingScheduler implements AvailabilityListener{
+    // rooms a housekeeper has at once: the one being cleaned and two lined up
+    static final int MAX_OPEN = 3;
+    // how far ahead to look for a room's next arrival
+    private static final int ARRIVAL_HORIZON = 365;
+
+    private final AvailabilityIndex availability;
+    private final Booking booking;
+    // all guarded by this
+    // most urgent first; a sorted set rather than a heap, so a task can be taken out and re-keyed
+    private final TreeSet<CleaningTask> pending = new TreeSet<>();
+    // the task of every room in pending
+    private final Map<Room, CleaningTask> pendingOf = new HashMap<>();
+    // rooms already pending or assigned, so a room vacated twice is cleaned once
+    private final Set<Room> queued = new HashSet<>();
+    private final PriorityQueue<Crew> crews = new PriorityQueue<>();
+    private final Map<houseKeeper, Crew> crewOf = new HashMap<>();
+    // night (epoch day) -> housekeeper -> rooms finished that day
+    private final Map<Long, Map<houseKeeper, List<Room>>> serviced = new HashMap<>();
+    private long nextSequence;
+
+    static class CleaningTask implements Comparable<CleaningTask>{
+        final Room room;
+        // Long.MAX_VALUE when no arrival is booked
+        final long nextArrivalNight;
+        // the first night that can be an arrival (the departing guest may hold nights before it)
+        final long arrivalsFrom;
+        final long vacatedAt;
+        final long sequence;
+
+        CleaningTask(Room room, long nextArrivalNight, long arrivalsFrom, long vacatedAt, long sequence){
+            this.room = room;
+            this.nextArrivalNight = nextArrivalNight;
+            this.arrivalsFrom = arrivalsFrom;
+            this.vacatedAt = vacatedAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(CleaningTask other){
+            int byArrival = Long.compare(nextArrivalNight, other.nextArrivalNight);
+            if (byArrival != 0) {
+                return byArrival;
+            }
+            int byVacated = Long.compare(vacatedAt, other.vacatedAt);
+            return byVacated != 0 ? byVacated : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    static class Crew implements Comparable<Crew>{
+        final houseKeeper keeper;
+        // handed out, not started yet, most urgent first
+        final ArrayDeque<CleaningTask> assigned = new ArrayDeque<>();
+        // assigned + started and not finished
+        final Set<CleaningTask> open = new HashSet<>();
+        final long order;
+
+        Crew(houseKeeper keeper, long order){
+            this.keeper = keeper;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Crew other){
+            int byLoad = Integer.compare(open.size(), other.open.size());
+            return byLoad != 0 ? byLoad : Long.compare(order, other.order);
+        }
+    }
+
+    // rooms: the hotel's rooms; the ones still waiting to be cleaned after a check-out are queued
+    public HousekeepingScheduler(AvailabilityIndex availability, Booking booking, Collection<Room> rooms){
+        this.availability = availability;
+        this.booking = booking;
+        availability.addListener(this);
+        Date recovered = new Date();
+        for (Room room : rooms) {
+            if (room.roomStatus == RoomStatus.NOT_AVAILABLE) {
+                roomVacated(room, recovered);
+            }
+        }
+        booking.addCheckOutListener(stay -> {
+            Date now = new Date();
+            // a guest leaving early still holds the rest of their nights, which aren't an arrival:
+            // look for the next one from the end of their stay
+            long from = Math.max(AvailabilityIndex.nightOf(now),
+                    AvailabilityIndex.nightOf(stay.startDate) + stay.durationInDays);
+            for (Room room : stay.roomInfo) {
+                roomVacated(room, now, from);
+            }
+        });
+    }
+
+    public synchronized void addHouseKeeper(houseKeeper keeper){
+        if (!crewOf.containsKey(keeper)) {
+            Crew crew = new Crew(keeper, nextSequence++);
+            crewOf.put(keeper, crew);
+            crews.add(crew);
+            keeper.scheduler = this;
+            dispatch();
+        }
+    }
+
+    // queue a room for cleaning
+    public void roomVacated(Room room, Date when){
+        roomVacated(room, when, AvailabilityIndex.nightOf(when));
+    }
+
+    // the next arrival is the first booked night from arrivalsFrom on
+    private synchronized void roomVacated(Room room, Date when, long arrivalsFrom){
+        if (!queued.add(room)) {
+            return;
+        }
+        CleaningTask task = new CleaningTask(room, nextArrival(room, arrivalsFrom), arrivalsFrom, when.getTime(),
+                nextSequence++);
+        pending.add(task);
+        pendingOf.put(room, task);
+        dispatch();
+    }
+
+    // a waiting room was booked or released: put it back in the queue by its new next arrival
+    // (called under the Booking's lock on the room; rooms already handed out keep their place)
+    @Override
+    public synchronized void nightsChanged(Room room, long firstNight, int nights){
+        CleaningTask task = pendingOf.get(room);
+        if (task == null) {
+            return;
+        }
+        long from = Math.max(task.arrivalsFrom, AvailabilityIndex.nightOf(new Date()));
+        if (firstNight + nights <= from) {
+            return;
+        }
+        long arrival = nextArrival(room, from);
+        if (arrival != task.nextArrivalNight) {
+            CleaningTask rekeyed = new CleaningTask(room, arrival, task.arrivalsFrom, task.vacatedAt, task.sequence);
+            pending.remove(task);
+            pending.add(rekeyed);
+            pendingOf.put(room, rekeyed);
+        }
+    }
+
+    @Override
+    public void roomsChanged(RoomStyle roomStyle){
+    }
+
+    // Long.MAX_VALUE when there is none within ARRIVAL_HORIZON
+    private long nextArrival(Room room, long fromNight){
+        long arrival = availability.nextBookedNight(room, fromNight, ARRIVAL_HORIZON);
+        return arrival < 0 ? Long.MAX_VALUE : arrival;
+    }
+
+    // the next room this housekeeper should clean, null if there is nothing for them right now
+    public synchronized CleaningTask nextTask(houseKeeper keeper){
+        Crew crew = crewOf.get(keeper);
+        if (crew == null) {
+            return null;
+        }
+        // the room stays open (counted in the load) until it is finished
+        return crew.assigned.poll();
+    }
+
+    // false if the task isn't open for this housekeeper (someone else's, or finished already)
+    public boolean finished(houseKeeper keeper, CleaningTask task, Date startDate, int duration){
+        synchronized (this) {
+            Crew crew = crewOf.get(keeper);
+            if (crew == null || !crew.open.contains(task)) {
+                return false;
+            }
+            crews.remove(crew);
+            crew.open.remove(task);
+            crew.assigned.remove(task);
+            crews.add(crew);
+        }
+        HouseKeepingLog log = new HouseKeepingLog();
+        log.description = "cleaned after check-out";
+        log.startDate = startDate;
+        log.duration = duration;
+        log.houseKeeper = keeper;
+        booking.logHousekeeping(task.room, log);
+        synchronized (this) {
+            queued.remove(task.room);
+            serviced.computeIfAbsent(AvailabilityIndex.nightOf(startDate), night -> new HashMap<>())
+                    .computeIfAbsent(keeper, k -> new ArrayList<>())
+                    .add(task.room);
+            dispatch();
+        }
+        return true;
+    }
+
+    public synchronized List<Room> getRoomsServiced(houseKeeper keeper, Date date){
+        Map<houseKeeper, List<Room>> day = serviced.get(AvailabilityIndex.nightOf(date));
+        List<Room> rooms = day == null ? null : day.get(keeper);
+        return rooms == null ? List.of() : List.copyOf(rooms);
+    }
+
+    // drop the index of days before a date
+    public synchronized void forgetBefore(Date date){
+        long cutoff = AvailabilityIndex.nightOf(date);
+        serviced.keySet().removeIf(night -> night < cutoff);
+    }
+
+    public synchronized int getPendingCount(){
+        return pending.size();
+    }
+
+    // hand the most urgent rooms to the least loaded housekeepers with room in their lineup
+    private void dispatch(){
+        // the least loaded housekeeper is at the head: if they are full, everyone is
+        while (!pending.isEmpty() && !crews.isEmpty() && crews.peek().open.size() < MAX_OPEN) {
+            Crew crew = crews.poll();
+            CleaningTask task = pending.pollFirst();
+            pendingOf.remove(task.room);
+            crew.assigned.add(task);
+            crew.open.add(task);
+            crews.add(crew);
+        }
+    }
 }
 
 class RoomBooking{
@@ -131,40 +2352,155 @@ class RoomBooking{
     int durationInDays;
     List<Guest> guestList;
     List<Room> roomInfo;
-    BaseRoomCharge totalRoomCharges;
+    ChargeLedger totalRoomCharges;
 }
 
-// Decorator pattern for the room charges
+// Room charges: an append-only ledger of line items in cents instead of a decorator chain
+// (a decorator recomputed, and re-added, the whole chain on every getCost, and recursed as deep as
+// the number of charges). posting a charge appends a line and bumps the running totals, so reading
+// a total is O(1) and reading it twice gives the same answer
+//
+//   ROOM           2 nights x 120.00   24000
+//   ROOM_SERVICE   breakfast            1850
+//   ADJUSTMENT     breakfast refund    -1850
+//   total                              24000
+//
+// lines are never changed or removed: a correction is another line with a negative amount
 interface BaseRoomCharge{
     double getCost();
 }
 
-interface RoomCharge implements BaseRoomCharge{
-    double cost;
-    double getCost(){
-        return cost;
+public enum ChargeType{
+    ROOM, ROOM_SERVICE, IN_ROOM_PURCHASE, ADJUSTMENT;
+}
+
+class ChargeLedger implements BaseRoomCharge{
+    private static final ChargeType[] TYPES = ChargeType.values();
+
+    // line i = amounts[i], types[i], descriptions[i]; only the first size entries are posted
+    // the arrays are written before size, so a reader that reads size first sees whole lines
+    private long[] amounts = new long[4];
+    private byte[] types = new byte[4];
+    private String[] descriptions = new String[4];
+    private volatile int size;
+    private volatile long totalCents;
+    // guarded by this
+    private final long[] totalsByType = new long[TYPES.length];
+
+    // the nightly price of every room for every night of the stay
+    public static ChargeLedger forStay(List<Room> rooms, int nights){
+        ChargeLedger ledger = new ChargeLedger();
+        for (Room room : rooms) {
+            if (room.bookingPrice != null) {
+                ledger.post(ChargeType.ROOM, toCents(room.bookingPrice) * nights,
+                        "room " + room.roomNumber + ", " + nights + " nights");
+            }
+        }
+        return ledger;
     }
 
-    void setCost(double cost){
-        this.cost = cost;
+    // returns the line number
+    public synchronized int post(ChargeType type, long cents, String description){
+        int line = size;
+        if (line == amounts.length) {
+            amounts = Arrays.copyOf(amounts, line * 2);
+            types = Arrays.copyOf(types, line * 2);
+            descriptions = Arrays.copyOf(descriptions, line * 2);
+        }
+        amounts[line] = cents;
+        types[line] = (byte) type.ordinal();
+        descriptions[line] = description;
+        totalsByType[type.ordinal()] += cents;
+        totalCents += cents;
+        size = line + 1;
+        return line;
     }
-}
 
-class RoomServiceCharge implements BaseRoomCharge{
-    double cost;
-    BaseRoomCharge baseRoomCharge;
-    Double getCost(){
-        baseRoomCharge.setCost(baseRoomCharge.getCost() + cost);
-        return baseRoomCharge.getCost();
+    public long getTotalCents(){
+        return totalCents;
     }
-}
 
-class InRoomPurchasesCharges implements BaseRoomCharge{
-    double cost;
-    BaseRoomCharge baseRoomCharge;
-    Double getCost(){
-        baseRoomCharge.setCost(baseRoomCharge.getCost() + cost);
-        return baseRoomCharge.getCost();
+    public synchronized long getTotalCents(ChargeType type){
+        return totalsByType[type.ordinal()];
+    }
+
+    @Override
+    public double getCost(){
+        return totalCents / 100.0;
+    }
+
+    public int getLineCount(){
+        return size;
+    }
+
+    public long getAmountCents(int line){
+        checkLine(line);
+        return amounts[line];
+    }
+
+    public ChargeType getType(int line){
+        checkLine(line);
+        return TYPES[types[line]];
+    }
+
+    public String getDescription(int line){
+        checkLine(line);
+        return descriptions[line];
+    }
+
+    // totals by type followed by the total, at into[offset..offset + TYPES.length], all from the
+    // same moment
+    public synchronized void copyTotals(long[] into, int offset){
+        System.arraycopy(totalsByType, 0, into, offset, TYPES.length);
+        into[offset + TYPES.length] = totalCents;
+    }
+
+    private void checkLine(int line){
+        if (line < 0 || line >= size) {
+            throw new IndexOutOfBoundsException("line " + line + " of " + size);
+        }
+    }
+
+    // prices are kept as Double on Room; round once, at the edge
+    public static long toCents(double amount){
+        return Math.round(amount * 100);
+    }
+
+    // 24000 -> "240.00", -1850 -> "-18.50"
+    public static String format(long cents){
+        long abs = Math.abs(cents);
+        return (cents < 0 ? "-" : "") + abs / 100 + "." + (abs % 100 < 10 ? "0" : "") + abs % 100;
     }
 }
 
+// Checkout of many rooms at once (a group, a tour bus): one row per booking in a single long[],
+// the totals by ChargeType in ledger order followed by the booking's total
+//
+//   row b = [ROOM, ROOM_SERVICE, IN_ROOM_PURCHASE, ADJUSTMENT, total]   at b * FolioBatch.ROW
+//
+// every ledger keeps running totals, so this is O(bookings) and allocates nothing when the caller
+// reuses the array
+class FolioBatch{
+    public static final int ROW = ChargeType.values().length + 1;
+
+    public static long[] totals(List<RoomBooking> bookings){
+        long[] rows = new long[bookings.size() * ROW];
+        totals(bookings, rows);
+        return rows;
+    }
+
+    // returns the grand total of all the bookings
+    public static long totals(List<RoomBooking> bookings, long[] rows){
+        long grandTotal = 0;
+        for (int b = 0; b < bookings.size(); b++) {
+            ChargeLedger ledger = bookings.get(b).totalRoomCharges;
+            if (ledger == null) {
+                Arrays.fill(rows, b * ROW, (b + 1) * ROW, 0);
+                continue;
+            }
+            ledger.copyTotals(rows, b * ROW);
+            grandTotal += rows[b * ROW + ROW - 1];
+        }
+        return grandTotal;
+    }
+}